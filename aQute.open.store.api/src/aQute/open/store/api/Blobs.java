@@ -0,0 +1,88 @@
+package aQute.open.store.api;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The binary objects of a store. Blobs are content addressed, they are
+ * identified by the hex SHA-1 of their content. Storing the same content twice
+ * stores it only once.
+ * <p>
+ * {@link File} and {@link InputStream} fields of a store type are stored as
+ * blobs, the field value in the document is the SHA-1. When a document is read
+ * these fields are lazy, the content is only fetched when it is used.
+ */
+public interface Blobs {
+
+	/**
+	 * Store the content of a stream. The stream is read once and closed.
+	 * 
+	 * @param in
+	 *            the content
+	 * @return the hex SHA-1 of the content
+	 */
+	String put(InputStream in) throws Exception;
+
+	/**
+	 * Answer a stream on the content of a blob. The content is verified
+	 * against the SHA-1 while it is read.
+	 * 
+	 * @param sha
+	 *            the hex SHA-1 of the blob
+	 * @return a stream on the content or null if there is no such blob
+	 */
+	InputStream get(String sha) throws Exception;
+
+	/**
+	 * Answer a local file with the content of a blob. The content is fetched
+	 * on the first access to the file's path or content, not when this method
+	 * is called.
+	 * 
+	 * @param sha
+	 *            the hex SHA-1 of the blob
+	 * @return a file for the blob
+	 */
+	File file(String sha) throws Exception;
+
+	/**
+	 * Open a channel on the content of a blob. The channel only reads the
+	 * parts of the blob that are read from the channel, so it can be used to
+	 * read a range of a large blob. The content is not verified.
+	 * 
+	 * @param sha
+	 *            the hex SHA-1 of the blob
+	 * @return a read only channel or null if there is no such blob
+	 */
+	SeekableByteChannel open(String sha) throws Exception;
+
+	/**
+	 * Transfer a range of a blob to a channel. Blobs that are cached locally
+	 * are transferred without copying them through the Java heap.
+	 * 
+	 * @param sha
+	 *            the hex SHA-1 of the blob
+	 * @param position
+	 *            the position of the first byte in the blob
+	 * @param count
+	 *            the maximum number of bytes
+	 * @param target
+	 *            the channel to write to
+	 * @return the number of bytes transferred, less than count if the end of
+	 *         the blob was reached
+	 * @throws FileNotFoundException
+	 *             if there is no such blob
+	 */
+	long transfer(String sha, long position, long count, WritableByteChannel target) throws Exception;
+
+	/**
+	 * Check if a blob is stored
+	 * 
+	 * @param sha
+	 *            the hex SHA-1 of the blob
+	 * @return true if the blob is stored
+	 */
+	boolean exists(String sha) throws Exception;
+}
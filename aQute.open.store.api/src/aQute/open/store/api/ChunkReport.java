@@ -0,0 +1,27 @@
+package aQute.open.store.api;
+
+import org.osgi.dto.DTO;
+
+/**
+ * The progress of {@link Cursor#removeInChunks(int, RateLimit)} and
+ * {@link Cursor#updateInChunks(int, RateLimit)}.
+ */
+public class ChunkReport extends DTO {
+	/**
+	 * The number of objects that were removed or updated
+	 */
+	public long		processed;
+
+	/**
+	 * The number of chunks that were done
+	 */
+	public int		chunks;
+
+	/**
+	 * The _id of the last object of the last chunk that was done. If no chunk
+	 * was done, it is the _id the job resumed after or null. A stopped job can be resumed by passing it to
+	 * {@link Cursor#removeInChunks(int, RateLimit, Object)} or
+	 * {@link Cursor#updateInChunks(int, RateLimit, Object)}.
+	 */
+	public Object	lastId;
+}
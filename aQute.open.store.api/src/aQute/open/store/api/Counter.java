@@ -0,0 +1,41 @@
+package aQute.open.store.api;
+
+/**
+ * A counter that can be incremented by many threads and processes without
+ * contending on a single document. The count is spread over a number of
+ * stripes, an increment only changes one stripe and the value is the sum of
+ * all stripes.
+ * <p>
+ * A buffered counter accumulates the increments locally and adds them to a
+ * stripe periodically. Its value includes the local increments but the
+ * increments of other processes are only visible after they were flushed.
+ */
+public interface Counter {
+
+	/**
+	 * Add a delta to the counter.
+	 * 
+	 * @param delta
+	 *            the amount to add, can be negative
+	 */
+	void add(long delta) throws Exception;
+
+	/**
+	 * Add one to the counter.
+	 */
+	void increment() throws Exception;
+
+	/**
+	 * Answer the value of the counter, the sum of all stripes and the local
+	 * increments that were not flushed yet.
+	 * 
+	 * @return the value of the counter
+	 */
+	long get() throws Exception;
+
+	/**
+	 * Write the local increments of a buffered counter. Does nothing for a
+	 * counter that is not buffered.
+	 */
+	void flush() throws Exception;
+}
@@ -1,6 +1,8 @@
 package aQute.open.store.api;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
@@ -69,6 +71,24 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Cursor<T> slice(String key, int count) throws Exception;
 
+	/**
+	 * Resolve a reference to the objects of another store. The objects of
+	 * this cursor are read in batches and the referenced ids of a batch are
+	 * read from the target store with a single query, see
+	 * {@link Store#getAll(Collection)}. So a list of objects with references
+	 * costs two queries instead of one query per object. The reference field
+	 * can hold an id, or a collection or array of ids.
+	 * 
+	 * @param refField
+	 *            the field with the id of the referenced object
+	 * @param target
+	 *            the store of the referenced objects
+	 * @param attach
+	 *            called with an object and each referenced object that exists
+	 * @return A new cursor
+	 */
+	<R> Cursor<T> include(String refField, Store<R> target, BiConsumer<T, R> attach) throws Exception;
+
 	/**
 	 * Limit the number of returned objects.
 	 * 
@@ -202,6 +222,64 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Cursor<T> text(String text) throws Exception;
 
+	/**
+	 * Full text search with relevance ranking. If the store has a text index,
+	 * see {@link Store#textIndex(String...)}, then the selection is restricted
+	 * to the objects that match the words in the query and the objects are
+	 * sorted on their relevance. If the type has a public {@code double _score}
+	 * field then it is set to the relevance score. Other sort orders are
+	 * applied after the relevance.
+	 * <p>
+	 * Without a text index this falls back to a keyword search, like
+	 * {@link #query(String, Map)} without templates.
+	 * <p>
+	 * The relevance is computed per query and cannot be used in a selection,
+	 * so a relevance ranked search cannot be paged with
+	 * {@link #page(int, String)}, it throws an IllegalArgumentException. Use
+	 * {@link #skip(int)} and {@link #limit(int)} for the first few pages of
+	 * a ranked search, or page a keyword search on another sort order.
+	 * 
+	 * @param q
+	 *            the query, a set of white space separated words. Phrases can
+	 *            be quoted and words can be negated with a '-'.
+	 * @return A new cursor
+	 */
+	Cursor<T> search(String q) throws Exception;
+
+	/**
+	 * Select the objects where the field has a value that starts with the
+	 * given text. If the field has a prefix index, see
+	 * {@link Store#prefixIndex(String...)}, the first limit matching values are
+	 * looked up in the index and the selection uses an equality test on these
+	 * values. Otherwise this is a range query on the field and limit is
+	 * ignored.
+	 * 
+	 * @param field
+	 *            field name
+	 * @param text
+	 *            the prefix
+	 * @param limit
+	 *            the maximum number of distinct values to select on
+	 * @return A new cursor
+	 */
+	Cursor<T> prefix(String field, String text, int limit) throws Exception;
+
+	/**
+	 * Typo tolerant keyword search. The query is tokenized like
+	 * {@link #text(String)} and each word selects the objects that have a
+	 * keyword within the given number of edits (insertions, deletions, or
+	 * substitutions) of the word. The similar keywords are found with the
+	 * trigram index of the store, see {@link Store#trigramIndex()}. Without a
+	 * trigram index the words must match exactly.
+	 * 
+	 * @param q
+	 *            a set of white space separated words
+	 * @param maxEdits
+	 *            the maximum number of edits between a word and a keyword
+	 * @return A new cursor
+	 */
+	Cursor<T> fuzzy(String q, int maxEdits) throws Exception;
+
 	/**
 	 * Create a query based on templates. A template has a name and should get a
 	 * value in the query by appending it with a ':' and the value. Like:
@@ -313,6 +391,51 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Cursor<T> inc(String field, Object value) throws Exception;
 
+	/**
+	 * Transform all selected objects with a function and write back the
+	 * changes. The objects are read in batches in the order of their _id. Only
+	 * the fields that the function changed are written, all the changes of a
+	 * batch are written in one bulk operation. The function may change the
+	 * given object and return it, or return another object with the same _id.
+	 * If it returns null the object is left unchanged.
+	 * 
+	 * @param fn
+	 *            the function that transforms an object
+	 * @param batchSize
+	 *            the number of objects that are read and written at once
+	 * @return the number of modified and unchanged objects
+	 */
+	TransformReport transform(Function<T, T> fn, int batchSize) throws Exception;
+
+	/**
+	 * Transform the selected objects like {@link #transform(Function, int)}.
+	 * If guarded, a change is only written if the changed fields still have
+	 * the values that the function saw. Otherwise the change is counted as a
+	 * conflict.
+	 * 
+	 * @param fn
+	 *            the function that transforms an object
+	 * @param batchSize
+	 *            the number of objects that are read and written at once
+	 * @param guarded
+	 *            only write a change when the changed fields were not
+	 *            modified in the mean time
+	 * @return the number of modified, unchanged, and conflicted objects
+	 */
+	TransformReport transform(Function<T, T> fn, int batchSize, boolean guarded) throws Exception;
+
+	/**
+	 * Use the given write mode for {@link #update()}, {@link #remove()}, and
+	 * the modify methods instead of the mode of the store. An unacknowledged
+	 * update or remove answers 0 because the number of objects is not known.
+	 * The modify methods need the result and are at least acknowledged.
+	 * 
+	 * @param mode
+	 *            the write mode
+	 * @return A new cursor
+	 */
+	Cursor<T> writeMode(WriteMode mode) throws Exception;
+
 	/**
 	 * If the collection is empty.
 	 * 
@@ -328,6 +451,37 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	int update() throws Exception;
 
+	/**
+	 * Create the object when the selection is empty in
+	 * {@link #modifyAndGet()} or {@link #getAndModify()}. The new object gets
+	 * the equality fields of the selection and the update.
+	 * 
+	 * @return A new cursor
+	 */
+	Cursor<T> upsert() throws Exception;
+
+	/**
+	 * Atomically update the first selected object and return it after the
+	 * update in a single round trip. The first object is determined by the
+	 * sort order, only the selected fields are returned, see
+	 * {@link #select(String...)}. This is useful for counters and work queues
+	 * where an update followed by a read would be racy.
+	 * 
+	 * @return the updated object or an empty Optional if nothing was selected
+	 *         and no upsert was requested
+	 */
+	Optional<T> modifyAndGet() throws Exception;
+
+	/**
+	 * Atomically update the first selected object like
+	 * {@link #modifyAndGet()} but return the object as it was before the
+	 * update.
+	 * 
+	 * @return the object before the update or an empty Optional if nothing
+	 *         was selected, also when the object was upserted
+	 */
+	Optional<T> getAndModify() throws Exception;
+
 	/**
 	 * Return the first element in the collection that matches the current
 	 * selection.
@@ -337,6 +491,24 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Optional<T> first() throws Exception;
 
+	/**
+	 * Answer a page of the selection. Pages are keyset based: the token of
+	 * the next page holds the values of the sort fields of the last object of
+	 * this page and the next page selects the objects after these values. So
+	 * a deep page is as cheap as the first page, also when objects are added
+	 * or removed between pages. The _id is added to the sort order to make it
+	 * unique. The next page must use the same selection and sort order. A
+	 * relevance ranked {@link #search(String)} cannot be paged.
+	 * 
+	 * @param size
+	 *            the maximum number of objects in the page
+	 * @param token
+	 *            the next token of the previous page or null for the first
+	 *            page
+	 * @return the page
+	 */
+	Page<T> page(int size, String token) throws Exception;
+
 	/**
 	 * Return an iterator on this collection.
 	 */
@@ -366,6 +538,67 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	int remove() throws Exception;
 
+	/**
+	 * Remove the selection in chunks so that a large removal does not
+	 * overload the database. The selected _ids are read in ascending order,
+	 * each chunk of _ids is removed with a separate operation and the rate
+	 * limit is applied between chunks. If the job is stopped, it can be
+	 * resumed with {@link #removeInChunks(int, RateLimit, Object)} after the
+	 * last _id of the progress.
+	 * 
+	 * @param chunkSize
+	 *            the number of objects per operation
+	 * @param limit
+	 *            the rate limit, {@link RateLimit#NONE} for no limit
+	 * @return the number of removed objects and the last _id
+	 */
+	ChunkReport removeInChunks(int chunkSize, RateLimit limit) throws Exception;
+
+	/**
+	 * Remove the selection in chunks like
+	 * {@link #removeInChunks(int, RateLimit)} but only the objects with an
+	 * _id greater than the given _id. This resumes a stopped job with the
+	 * {@link ChunkReport#lastId} of its progress, also for _ids that cannot
+	 * be expressed in a filter, like byte arrays.
+	 * 
+	 * @param chunkSize
+	 *            the number of objects per operation
+	 * @param limit
+	 *            the rate limit, {@link RateLimit#NONE} for no limit
+	 * @param after
+	 *            the _id to resume after or null to start at the first
+	 * @return the number of removed objects and the last _id
+	 */
+	ChunkReport removeInChunks(int chunkSize, RateLimit limit, Object after) throws Exception;
+
+	/**
+	 * Update the selection in chunks like {@link #removeInChunks(int, RateLimit)}.
+	 * Every chunk gets the update of this cursor.
+	 * 
+	 * @param chunkSize
+	 *            the number of objects per operation
+	 * @param limit
+	 *            the rate limit, {@link RateLimit#NONE} for no limit
+	 * @return the number of updated objects and the last _id
+	 */
+	ChunkReport updateInChunks(int chunkSize, RateLimit limit) throws Exception;
+
+	/**
+	 * Update the selection in chunks like
+	 * {@link #updateInChunks(int, RateLimit)} but only the objects with an
+	 * _id greater than the given _id, see
+	 * {@link #removeInChunks(int, RateLimit, Object)}.
+	 * 
+	 * @param chunkSize
+	 *            the number of objects per operation
+	 * @param limit
+	 *            the rate limit, {@link RateLimit#NONE} for no limit
+	 * @param after
+	 *            the _id to resume after or null to start at the first
+	 * @return the number of updated objects and the last _id
+	 */
+	ChunkReport updateInChunks(int chunkSize, RateLimit limit, Object after) throws Exception;
+
 	/**
 	 * Return the number of elements in the collection
 	 * 
@@ -385,6 +618,19 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	List<T> collect();
 
+	/**
+	 * Decode the selection into a view class. The public fields of the view
+	 * are the only fields that are read and must have the same name as a
+	 * field of the collection's type. The _id is only read if the view has an
+	 * _id field. Use a view for lists that only show a few fields of large
+	 * objects.
+	 * 
+	 * @param view
+	 *            a DTO class with a public no-arg constructor
+	 * @return a stream of views, closing it closes the database cursor
+	 */
+	<P> Stream<P> project(Class<P> view) throws Exception;
+
 	/**
 	 * Convert to a stream
 	 * 
@@ -0,0 +1,36 @@
+package aQute.open.store.api;
+
+import org.osgi.dto.DTO;
+
+/**
+ * The options of {@link Store#load(java.util.stream.Stream, LoadOptions)}.
+ */
+public class LoadOptions extends DTO {
+	/**
+	 * The number of threads that encode the objects, 0 for the number of
+	 * processors
+	 */
+	public int			parallelism;
+
+	/**
+	 * The number of batches that are written concurrently
+	 */
+	public int			writers		= 4;
+
+	/**
+	 * The maximum size of a batch in encoded bytes. A single object that is
+	 * larger is written in a batch of its own.
+	 */
+	public int			batchBytes	= 4 * 1024 * 1024;
+
+	/**
+	 * The number of batches that can wait for a writer. When the queue is
+	 * full the stream is not read until a writer takes a batch.
+	 */
+	public int			queue		= 8;
+
+	/**
+	 * The write mode of the batches or null for the mode of the store
+	 */
+	public WriteMode	mode;
+}
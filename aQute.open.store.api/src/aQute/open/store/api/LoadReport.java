@@ -0,0 +1,31 @@
+package aQute.open.store.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.osgi.dto.DTO;
+
+/**
+ * The outcome of {@link Store#load(java.util.stream.Stream, LoadOptions)}.
+ * Objects are identified by their position in the stream, starting at 0.
+ */
+public class LoadReport extends DTO {
+	/**
+	 * The number of objects that were inserted
+	 */
+	public long					inserted;
+
+	/**
+	 * The positions of the objects that were not inserted because their key
+	 * was already in the collection, in ascending order
+	 */
+	public List<Long>			duplicates	= new ArrayList<>();
+
+	/**
+	 * The error messages of the objects that could not be encoded or
+	 * inserted for another reason, by position
+	 */
+	public Map<Long, String>	errors		= new TreeMap<>();
+}
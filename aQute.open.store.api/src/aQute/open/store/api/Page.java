@@ -0,0 +1,23 @@
+package aQute.open.store.api;
+
+import java.util.List;
+
+import org.osgi.dto.DTO;
+
+/**
+ * A page of a selection, see {@link Cursor#page(int, String)}.
+ *
+ * @param <T>
+ *            The collection's type
+ */
+public class Page<T> extends DTO {
+	/**
+	 * The objects in this page
+	 */
+	public List<T>	items;
+
+	/**
+	 * The opaque token for the next page or null if this is the last page
+	 */
+	public String	nextToken;
+}
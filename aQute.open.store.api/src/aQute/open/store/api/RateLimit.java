@@ -0,0 +1,91 @@
+package aQute.open.store.api;
+
+import java.util.function.Consumer;
+
+/**
+ * Limits the rate of a chunked removal or update, see
+ * {@link Cursor#removeInChunks(int, RateLimit)}. A limit can pause between
+ * chunks, cap the number of objects per second, or both. It can also have a
+ * listener that receives the progress after every chunk.
+ */
+public final class RateLimit {
+	/**
+	 * No limit, the chunks are processed back to back
+	 */
+	public final static RateLimit	NONE	= new RateLimit(0, 0, null);
+
+	final long						pause;
+	final double					perSecond;
+	final Consumer<ChunkReport>		progress;
+
+	private RateLimit(long pause, double perSecond, Consumer<ChunkReport> progress) {
+		this.pause = pause;
+		this.perSecond = perSecond;
+		this.progress = progress;
+	}
+
+	/**
+	 * Pause between chunks
+	 * 
+	 * @param millis
+	 *            the pause in milliseconds
+	 * @return a new limit
+	 */
+	public static RateLimit pause(long millis) {
+		return new RateLimit(millis, 0, null);
+	}
+
+	/**
+	 * Process at most the given number of objects per second on average
+	 * 
+	 * @param objects
+	 *            the number of objects per second
+	 * @return a new limit
+	 */
+	public static RateLimit perSecond(double objects) {
+		return new RateLimit(0, objects, null);
+	}
+
+	/**
+	 * Also pause between chunks
+	 * 
+	 * @param millis
+	 *            the pause in milliseconds
+	 * @return a new limit
+	 */
+	public RateLimit andPause(long millis) {
+		return new RateLimit(millis, perSecond, progress);
+	}
+
+	/**
+	 * Report the progress after every chunk
+	 * 
+	 * @param listener
+	 *            receives the progress so far
+	 * @return a new limit
+	 */
+	public RateLimit progress(Consumer<ChunkReport> listener) {
+		return new RateLimit(pause, perSecond, listener);
+	}
+
+	/**
+	 * @return the pause between chunks in milliseconds
+	 */
+	public long getPause() {
+		return pause;
+	}
+
+	/**
+	 * @return the maximum number of objects per second, 0 for no maximum
+	 */
+	public double getPerSecond() {
+		return perSecond;
+	}
+
+	/**
+	 * @return the progress listener or null
+	 */
+	public Consumer<ChunkReport> getProgress() {
+		return progress;
+	}
+}
@@ -0,0 +1,21 @@
+package aQute.open.store.api;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a String field, or a collection of Strings, of a store type as
+ * searchable. The store maintains an indexed shadow copy of the value in lower
+ * case and without diacritical marks on every write.
+ * <p>
+ * On a searchable field the approximate operator {@code ~=} compares the whole
+ * value regardless of case and accents, wildcards match any part. So
+ * {@code (name~=creme*)} matches "Cr&egrave;me br&ucirc;l&eacute;e" but
+ * not "Some cr&egrave;me". Exact values and prefixes are then selected with a range
+ * on the index instead of a case insensitive regular expression.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Searchable {}
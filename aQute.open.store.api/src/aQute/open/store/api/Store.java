@@ -1,9 +1,19 @@
 package aQute.open.store.api;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
 /**
  * A Store of objects. A store is a typed collection of objects. Objects must be
  * DTOs. The DTO must have one magic field '_id' which is of type byte[]. This field is set by the store
  * and is some kind of unique identifier.
+ * <p>
+ * The _id can also be a String, or a long for compact ids. Long ids are
+ * allocated in blocks from a shared sequence so they are unique across
+ * processes, a primitive 0 means that the id is not set.
  *
  * @param <T>
  *            The store type
@@ -22,6 +32,46 @@ public interface Store<T> {
 	 */
 	T insert(T t) throws Exception;
 
+	/**
+	 * Insert a new object like {@link #insert(Object)} with the given write
+	 * mode instead of the mode of the store. An unacknowledged insert always
+	 * returns the object, it does not know if the object was already in the
+	 * collection.
+	 * 
+	 * @param t
+	 *            the target object
+	 * @param mode
+	 *            the write mode for this insert
+	 * @return the updated object or null if it could not be inserted
+	 */
+	T insert(T t, WriteMode mode) throws Exception;
+
+	/**
+	 * Insert all objects of a stream. The objects are encoded in parallel,
+	 * grouped in batches that are limited by their encoded size, and written
+	 * by a number of concurrent writers. The stream is only read as fast as
+	 * the writers can write. Objects without an _id get one like
+	 * {@link #insert(Object)}.
+	 * 
+	 * @param source
+	 *            the objects to insert, the stream is read once in order
+	 * @param options
+	 *            the options of the load or null for the defaults
+	 * @return the number of inserted objects and the position in the stream
+	 *         of the objects that could not be inserted
+	 */
+	LoadReport load(Stream<T> source, LoadOptions options) throws Exception;
+
+	/**
+	 * Set the default write mode of this store, see {@link WriteMode}. The
+	 * default is {@link WriteMode#ACKNOWLEDGED}.
+	 * 
+	 * @param mode
+	 *            the write mode
+	 * @return this store
+	 */
+	Store<T> writeMode(WriteMode mode);
+
 
 	/**
 	 * Update a document for the given fields.
@@ -31,6 +81,51 @@ public interface Store<T> {
 	 */
 	void update(T document, String... fields) throws Exception;
 
+	/**
+	 * Set the tracked mode of this store. In tracked mode the store remembers
+	 * a compact snapshot of each object that was read, inserted, or updated
+	 * through this store. An {@link #update(Object, String...)} without fields
+	 * of a tracked object then only writes the fields that changed since the
+	 * snapshot, and nothing at all if no field changed. Objects that are not
+	 * tracked are replaced as a whole. The snapshots do not keep the objects
+	 * alive.
+	 * 
+	 * @param on
+	 *            true to track the objects
+	 * @return this store
+	 */
+	Store<T> tracked(boolean on);
+
+	/**
+	 * Set the write behind mode of this store. In write behind mode the
+	 * updates of a single object by _id that only set, unset, or increment
+	 * fields, like {@code find(p).set("name").update()}, are buffered in memory
+	 * and coalesced per _id. A later set of a field replaces an earlier one,
+	 * increments are added. The buffer is written in one bulk operation when
+	 * it holds size objects or after the delay. Such an update always answers
+	 * 1 because it is not known yet if the object exists.
+	 * <p>
+	 * Reads can see stale objects until the buffer is written, use
+	 * {@link #flush()} to read your own writes. Other writes of this store
+	 * flush the buffer first so the writes keep their order. The buffer is
+	 * shared by the stores on the same collection and it is flushed when the
+	 * database is closed.
+	 * 
+	 * @param size
+	 *            the maximum number of buffered objects, 0 or less disables
+	 *            write behind
+	 * @param delay
+	 *            the maximum time in milliseconds an update is buffered
+	 * @return this store
+	 */
+	Store<T> writeBehind(int size, long delay) throws Exception;
+
+	/**
+	 * Write the buffered updates of the write behind mode. When this returns
+	 * all updates that were made before are written.
+	 */
+	void flush() throws Exception;
+
 	/**
 	 * Either insert or update depending on the fact if this object is already inserted.
 	 * 
@@ -48,12 +143,39 @@ public interface Store<T> {
 	 */
 	Cursor<T> find(String where, Object... args) throws Exception;
 
+	/**
+	 * Compile a filter expression to a predicate on objects that are already
+	 * loaded. The filter language and its semantics are the same as for
+	 * {@link #find(String, Object...)} but the predicate is evaluated in the
+	 * local process. This makes it possible to apply the same query to cached
+	 * objects or to changes.
+	 * 
+	 * @param where
+	 *            The filter expression, uses String.format with the given args
+	 * @param args
+	 *            Any arguments
+	 * @return a predicate that matches the objects selected by the filter
+	 */
+	Predicate<T> predicate(String where, Object... args) throws Exception;
+
 	/**
 	 * Create a cursor on the target object's _id.
 	 * 
 	 */
 	Cursor<T> find(T target) throws Exception;
 
+	/**
+	 * Read the objects with the given ids. Large inputs are read in chunks
+	 * that run concurrently, so reading hundreds of objects takes a few round
+	 * trips instead of one per object.
+	 * 
+	 * @param ids
+	 *            the _ids of the objects, converted to the type of the _id
+	 * @return the objects in the order of the ids, with null for an id that
+	 *         has no object
+	 */
+	List<T> getAll(Collection< ? > ids) throws Exception;
+
 	/**
 	 * Create a cursor which will only return the given fields.
 	 * 
@@ -62,6 +184,116 @@ public interface Store<T> {
 	 */
 	Cursor<T> select(String... keys);
 
+	/**
+	 * Create the text index of this store on the given fields. A store can
+	 * only have one text index. If a store has a text index then
+	 * {@link Cursor#search(String)} uses it to rank the results.
+	 * 
+	 * @param fields
+	 *            the names of the fields with text
+	 * @return this store
+	 */
+	Store<T> textIndex(String... fields) throws Exception;
+
+	/**
+	 * Maintain an in memory prefix index on the String values of the given
+	 * fields. This index is used for auto completion, see
+	 * {@link #complete(String, String, int)} and
+	 * {@link Cursor#prefix(String, String, int)}. The index is built when this
+	 * method is called and then kept up to date with the writes through this
+	 * store and periodically refreshed from the collection.
+	 * 
+	 * @param fields
+	 *            the names of the fields, can be String fields or collections
+	 *            of Strings like the keywords
+	 * @return this store
+	 */
+	Store<T> prefixIndex(String... fields) throws Exception;
+
+	/**
+	 * Maintain an in memory trigram index on the keywords of this store. The
+	 * index is used by {@link Cursor#fuzzy(String, int)} to find the keywords
+	 * that are similar to misspelled words. The index is built when this method
+	 * is called and then kept up to date like the prefix index.
+	 * 
+	 * @return this store
+	 */
+	Store<T> trigramIndex() throws Exception;
+
+	/**
+	 * Rebuild the keywords of all objects in this store, for example after the
+	 * tokenization rules have changed. The text of each object is tokenized
+	 * and the keywords field is replaced with the result. The work is done in
+	 * batches in parallel. The progress is saved after each batch, a reindex
+	 * that did not complete is resumed by the next call with the same job. A
+	 * reindex with another job starts from the beginning.
+	 * 
+	 * @param job
+	 *            identifies the tokenization rules and the text, for example a
+	 *            version, must change when either changes
+	 * @param textOf
+	 *            answers the text to index for an object, may return null
+	 * @param parallelism
+	 *            the number of batches that are tokenized and written
+	 *            concurrently, if less than 1 the number of processors
+	 * @return the number of reindexed objects
+	 */
+	long reindexText(String job, Function<T, String> textOf, int parallelism) throws Exception;
+
+	/**
+	 * Answer the sorted distinct values of a field that start with the given
+	 * prefix. This is fast for fields with a prefix index, otherwise it
+	 * queries the collection.
+	 * 
+	 * @param field
+	 *            the name of the field
+	 * @param prefix
+	 *            the prefix
+	 * @param limit
+	 *            the maximum number of values
+	 * @return the values in ascending order
+	 */
+	List<String> complete(String field, String prefix, int limit) throws Exception;
+
+	/**
+	 * The binary objects of this store. The File and InputStream fields of the
+	 * store type are stored here.
+	 * 
+	 * @return the blobs of this store
+	 */
+	Blobs blobs();
+
+	/**
+	 * Answer a striped counter. The stripes are kept in a side collection of
+	 * this store, each increment changes one stripe that is chosen by the
+	 * current thread. Use this instead of {@link Cursor#inc(String, Object)}
+	 * on a single object that is incremented very often.
+	 * 
+	 * @param name
+	 *            the name of the counter
+	 * @param stripes
+	 *            the number of stripes
+	 * @return the counter
+	 */
+	Counter counter(String name, int stripes) throws Exception;
+
+	/**
+	 * Answer a buffered striped counter. The increments are accumulated
+	 * locally and added to a random stripe every flush period, see
+	 * {@link Counter}. A counter with the same name in this store is shared,
+	 * the stripes and flush period of the first call are used.
+	 * 
+	 * @param name
+	 *            the name of the counter
+	 * @param stripes
+	 *            the number of stripes
+	 * @param flush
+	 *            the flush period in milliseconds, 0 or less for a counter
+	 *            that writes every increment
+	 * @return the counter
+	 */
+	Counter counter(String name, int stripes, long flush) throws Exception;
+
 	/**
 	 * Create a new unique id for the store.
 	 * @return the unique id.
@@ -69,13 +301,40 @@ public interface Store<T> {
 	byte[] uniqueId();
 
 	/**
-	 * Use optimistic locking
+	 * Use optimistic locking. If the type has a numeric {@code _version} field
+	 * then every update through the store increments this version. The
+	 * returned cursor selects the given object only if it still has the
+	 * version of the given object. So {@code optimistic(p).set(...).update()}
+	 * returns 0 when someone else updated the object since it was read. After
+	 * a successful update the version of p is incremented, so it can be used
+	 * for the next optimistic update.
+	 * <p>
+	 * Without a version field this is the same as {@link #find(Object)}.
+	 * 
 	 * @param p
-	 * @return
+	 *            the object as it was read
+	 * @return a cursor on the object if not changed
 	 * @throws Exception
 	 */
 	Cursor<T> optimistic(T p) throws Exception;
 
+	/**
+	 * Read an object, apply a function, and write the changed fields back with
+	 * optimistic locking. If the object was changed in the mean time, it is
+	 * read again and the function is applied again after a short random
+	 * backoff. The function must therefore not have side effects. The type
+	 * must have a {@code _version} field.
+	 * 
+	 * @param id
+	 *            the _id of the object
+	 * @param fn
+	 *            changes the object or returns null to leave it unchanged
+	 * @return the updated object or null if there is no such object
+	 * @throws java.util.ConcurrentModificationException
+	 *             if the update failed after a number of retries
+	 */
+	T updateWithRetry(Object id, Function<T, T> fn) throws Exception;
+
 	/**
 	 * Drop this collection, databases normally do not allow this though and
 	 * throw a {@link SecurityException}
@@ -0,0 +1,24 @@
+package aQute.open.store.api;
+
+import org.osgi.dto.DTO;
+
+/**
+ * The outcome of {@link Cursor#transform(java.util.function.Function, int)}.
+ */
+public class TransformReport extends DTO {
+	/**
+	 * The number of objects that were changed and written
+	 */
+	public int	modified;
+
+	/**
+	 * The number of objects that were not changed by the function
+	 */
+	public int	unchanged;
+
+	/**
+	 * The number of objects that were changed by the function but were
+	 * modified by someone else in the mean time and therefore not written
+	 */
+	public int	conflicted;
+}
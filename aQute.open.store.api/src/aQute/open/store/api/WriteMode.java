@@ -0,0 +1,37 @@
+package aQute.open.store.api;
+
+/**
+ * How long a write waits for the acknowledgment of the database. A store has
+ * a default mode, see {@link Store#writeMode(WriteMode)}, that can be
+ * overridden per call.
+ */
+public enum WriteMode {
+	/**
+	 * Do not wait at all. Errors, also duplicate keys, are not reported and
+	 * the number of affected objects is not known. Useful for telemetry.
+	 */
+	UNACKNOWLEDGED,
+
+	/**
+	 * Wait until the primary has applied the write. This is the default.
+	 */
+	ACKNOWLEDGED,
+
+	/**
+	 * Wait until the primary has written the write to its journal.
+	 */
+	JOURNALED,
+
+	/**
+	 * Wait until a majority of the replica set has applied the write.
+	 */
+	MAJORITY,
+
+	/**
+	 * Journaled, but concurrent inserts share one acknowledgment. The inserts
+	 * that arrive within a short window are written in a single bulk
+	 * operation and each insert gets its own outcome. Other writes are
+	 * journaled.
+	 */
+	GROUP_COMMIT;
+}
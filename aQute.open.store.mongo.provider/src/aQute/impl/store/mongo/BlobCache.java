@@ -0,0 +1,195 @@
+package aQute.impl.store.mongo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.Digester;
+import aQute.libg.cryptography.SHA1;
+
+/**
+ * A local disk cache of blobs. The files in the cache directory are named
+ * after the hex SHA-1 of their content. A blob is downloaded to a temporary
+ * file in the cache directory and verified against its SHA-1, only then it is
+ * moved to its name. So a file with a SHA-1 name is always complete and
+ * correct.
+ * <p>
+ * Concurrent misses on the same blob download it once, the other callers wait
+ * for that download.
+ * <p>
+ * The cache has a budget in bytes. When the total size of the cached files
+ * exceeds the budget, the least recently used files are removed. A file that
+ * was handed out less than the grace period ago is not removed, the caller
+ * may not have opened it yet.
+ */
+class BlobCache {
+	final static long				GRACE	= 10000;
+
+	final File						dir;
+	final long						budget;
+	final LinkedHashMap<String, Cached>	lru		= new LinkedHashMap<>(16, 0.75f, true);
+	final Map<String, CompletableFuture<File>>	fills	= new ConcurrentHashMap<>();
+	long							grace	= GRACE;
+	long							size;
+
+	static class Cached {
+		final long	length;
+		long		used;
+
+		Cached(long length, long used) {
+			this.length = length;
+			this.used = used;
+		}
+	}
+
+	interface Source {
+		/**
+		 * Open the content of a blob or answer null if it does not exist
+		 */
+		InputStream open(String sha) throws Exception;
+	}
+
+	BlobCache(File dir, long budget) throws IOException {
+		this.dir = dir;
+		this.budget = budget;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create the blob cache directory " + dir);
+
+		File[] files = dir.listFiles();
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files) {
+			if (file.getName().endsWith(".tmp"))
+				file.delete();
+			else if (file.isFile()) {
+				lru.put(file.getName(), new Cached(file.length(), 0));
+				size += file.length();
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Answer the cached file of a blob, fill the cache from the source if the
+	 * blob is not cached. Only one caller fills a blob, the others wait for it.
+	 */
+	File get(String sha, Source source) throws Exception {
+		File file = new File(dir, sha);
+		synchronized (this) {
+			Cached cached = lru.get(sha);
+			if (cached != null) {
+				if (file.isFile()) {
+					cached.used = System.currentTimeMillis();
+					file.setLastModified(cached.used);
+					return file;
+				}
+				size -= lru.remove(sha).length;
+			}
+		}
+
+		CompletableFuture<File> fill = new CompletableFuture<>();
+		CompletableFuture<File> running = fills.putIfAbsent(sha, fill);
+		if (running != null)
+			try {
+				return running.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw cause instanceof Exception ? (Exception) cause : e;
+			}
+
+		try {
+			fill(sha, file, source);
+
+			synchronized (this) {
+				Cached previous = lru.put(sha, new Cached(file.length(), System.currentTimeMillis()));
+				if (previous != null)
+					size -= previous.length;
+				size += file.length();
+				evict();
+			}
+			fill.complete(file);
+			return file;
+		} catch (Throwable e) {
+			fill.completeExceptionally(e);
+			throw e;
+		} finally {
+			fills.remove(sha, fill);
+		}
+	}
+
+	/**
+	 * Answer the cached file of a blob or null if it is not cached
+	 */
+	synchronized File peek(String sha) {
+		Cached cached = lru.get(sha);
+		if (cached == null)
+			return null;
+
+		File file = new File(dir, sha);
+		if (!file.isFile())
+			return null;
+
+		cached.used = System.currentTimeMillis();
+		return file;
+	}
+
+	private void fill(String sha, File file, Source source) throws Exception {
+		File tmp = File.createTempFile(sha, ".tmp", dir);
+		try {
+			try (InputStream in = source.open(sha); FileOutputStream fout = new FileOutputStream(tmp)) {
+				if (in == null)
+					throw new FileNotFoundException("No such blob " + sha);
+
+				Digester<SHA1> digester = SHA1.getDigester(fout);
+				IO.copy(in, digester);
+				String calculated = Hex.toHexString(digester.digest().toByteArray());
+				if (!calculated.equalsIgnoreCase(sha))
+					throw new IOException("Received invalid file from gridfs, sha does not match. Got " + calculated
+							+ " expected " + sha);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				// another process filled it, the name guarantees the content
+			}
+			file.setReadOnly();
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/*
+	 * Remove the least recently used files until the cache fits the budget.
+	 * The files that were handed out within the grace period are kept, so the
+	 * most recent file is kept even if it is larger than the budget.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Cached>> i = lru.entrySet().iterator();
+		while (size > budget && i.hasNext()) {
+			Map.Entry<String, Cached> eldest = i.next();
+			if (now - eldest.getValue().used < grace || !i.hasNext())
+				continue;
+
+			new File(dir, eldest.getKey()).delete();
+			size -= eldest.getValue().length;
+			i.remove();
+		}
+	}
+}
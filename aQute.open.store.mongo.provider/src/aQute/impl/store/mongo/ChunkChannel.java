@@ -0,0 +1,104 @@
+package aQute.impl.store.mongo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read only channel on the chunks of a GridFS file. Only the chunk that
+ * covers the current position is loaded, so reading a range of a large file
+ * only transfers the chunks of that range.
+ */
+class ChunkChannel implements SeekableByteChannel {
+	final Chunks	chunks;
+	final long		length;
+	final int		chunkSize;
+	long			position;
+	int				current	= -1;
+	byte[]			data;
+	boolean			open	= true;
+
+	interface Chunks {
+		/**
+		 * Load the data of chunk n
+		 */
+		byte[] load(int n) throws IOException;
+	}
+
+	ChunkChannel(Chunks chunks, long length, int chunkSize) {
+		this.chunks = chunks;
+		this.length = length;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		check();
+		if (position >= length)
+			return -1;
+
+		int n = (int) (position / chunkSize);
+		if (n != current) {
+			data = chunks.load(n);
+			current = n;
+		}
+
+		int offset = (int) (position - (long) n * chunkSize);
+		int count = Math.min(dst.remaining(), data.length - offset);
+		if (count <= 0)
+			throw new IOException("Chunk " + n + " is shorter than expected");
+
+		dst.put(data, offset, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long position() throws IOException {
+		check();
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long position) throws IOException {
+		check();
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position " + position);
+		this.position = position;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		check();
+		return length;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		data = null;
+	}
+
+	private void check() throws ClosedChannelException {
+		if (!open)
+			throw new ClosedChannelException();
+	}
+}
@@ -0,0 +1,110 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import aQute.open.store.api.ChunkReport;
+import aQute.open.store.api.RateLimit;
+
+/**
+ * Removes or updates a selection in chunks of _ids. The _ids of a chunk are
+ * read in ascending order after the last _id of the previous chunk, then the
+ * chunk is removed or updated with a selection on these _ids and the original
+ * selection. So an object that no longer matches is left alone. Between
+ * chunks the rate limit pauses and, if there is a maximum rate, sleeps until
+ * the average rate is below the maximum.
+ */
+class Chunker {
+	final MongoStoreImpl< ? >	store;
+	final DBObject				where;
+	final DBObject				update;
+	final WriteConcern			concern;
+
+	/**
+	 * @param update
+	 *            the update or null to remove
+	 */
+	Chunker(MongoStoreImpl< ? > store, DBObject where, DBObject update, WriteConcern concern) {
+		this.store = store;
+		this.where = where == null ? new BasicDBObject() : where;
+		this.update = update;
+		this.concern = concern;
+	}
+
+	/**
+	 * @param after
+	 *            the _id to resume after or null to start at the first
+	 */
+	ChunkReport run(int chunkSize, RateLimit limit, Object after) throws Exception {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be positive " + chunkSize);
+		if (limit == null)
+			limit = RateLimit.NONE;
+
+		ChunkReport report = new ChunkReport();
+		report.lastId = after;
+		long start = System.currentTimeMillis();
+		long seen = 0;
+
+		while (true) {
+			DBObject query = where;
+			if (report.lastId != null)
+				query = and(query, new BasicDBObject("_id", new BasicDBObject("$gt", report.lastId)));
+
+			List<Object> ids = new ArrayList<>(chunkSize);
+			try (DBCursor cursor = store.collection.find(query, new BasicDBObject("_id", 1))
+					.sort(new BasicDBObject("_id", 1)).limit(chunkSize)) {
+				while (cursor.hasNext())
+					ids.add(cursor.next().get("_id"));
+			}
+			if (ids.isEmpty())
+				return report;
+
+			DBObject chunk = and(where, new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+			WriteResult result = update == null ? store.collection.remove(chunk, concern)
+					: store.collection.update(chunk, update, false, true, concern);
+			store.error(result);
+
+			report.processed += MongoStoreImpl.count(result);
+			report.chunks++;
+			report.lastId = ids.get(ids.size() - 1);
+			seen += ids.size();
+			if (limit.getProgress() != null)
+				limit.getProgress().accept(report);
+
+			if (ids.size() < chunkSize)
+				return report;
+
+			throttle(limit, start, seen);
+		}
+	}
+
+	/*
+	 * Pause, then sleep until the rate of objects since the start is below
+	 * the maximum
+	 */
+	static void throttle(RateLimit limit, long start, long seen) throws InterruptedException {
+		if (limit.getPause() > 0)
+			Thread.sleep(limit.getPause());
+
+		if (limit.getPerSecond() > 0) {
+			long due = start + (long) (seen * 1000 / limit.getPerSecond());
+			long wait = due - System.currentTimeMillis();
+			if (wait > 0)
+				Thread.sleep(wait);
+		}
+	}
+
+	private static DBObject and(DBObject a, DBObject b) {
+		if (a.keySet().isEmpty())
+			return b;
+		return new BasicDBObject("$and", Arrays.asList(a, b));
+	}
+}
@@ -0,0 +1,148 @@
+package aQute.impl.store.mongo;
+
+import java.io.EOFException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parsed form of the LDAP like filter language. The parse tree is shared
+ * between the translation to a Mongo query and the compilation to an in
+ * process predicate so that both have exactly the same view on an expression.
+ */
+abstract class Expr {
+	final static Pattern SIMPLE_EXPR = Pattern.compile("([^=><~*]+)\\s*(=|<=|>=|>|<|~=)\\s*([^\\s]+)");
+
+	enum Op {
+		AND, OR, NOT;
+	}
+
+	/**
+	 * An and, or, or not on a list of sub expressions.
+	 */
+	static class Composite extends Expr {
+		final Op			op;
+		final List<Expr>	exprs;
+
+		Composite(Op op, List<Expr> exprs) {
+			this.op = op;
+			this.exprs = exprs;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("(");
+			sb.append(op == Op.AND ? '&' : op == Op.OR ? '|' : '!');
+			for (Expr e : exprs)
+				sb.append(e);
+			return sb.append(")").toString();
+		}
+	}
+
+	/**
+	 * A key op value expression. The value has its wildcards already replaced
+	 * with the regular expression '.*', the regex flag indicates if this
+	 * happened.
+	 */
+	static class Simple extends Expr {
+		final String	key;
+		final String	op;
+		final String	value;
+		final boolean	regex;
+
+		Simple(String key, String op, String value, boolean regex) {
+			this.key = key;
+			this.op = op;
+			this.value = value;
+			this.regex = regex;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + key + op + value + ")";
+		}
+	}
+
+	/**
+	 * Parse a formatted filter expression. The expression must be enclosed in
+	 * parentheses.
+	 */
+	static Expr parse(String formatted) throws Exception {
+		Reader r = new StringReader(formatted);
+		return expr(r, r.read());
+	}
+
+	private static Expr expr(Reader ldap, int c) throws Exception {
+		while (Character.isWhitespace(c))
+			c = ldap.read();
+
+		assert c == '(';
+
+		do {
+			c = ldap.read();
+		} while (Character.isWhitespace(c));
+
+		switch (c) {
+		case '&':
+			return new Composite(Op.AND, exprs(ldap));
+
+		case '|':
+			return new Composite(Op.OR, exprs(ldap));
+
+		case '!':
+			return new Composite(Op.NOT, exprs(ldap));
+
+		case -1:
+			throw new EOFException();
+
+		default:
+			while (Character.isWhitespace(c))
+				c = ldap.read();
+
+			StringBuilder sb = new StringBuilder();
+			boolean regex = false;
+
+			while (true) {
+				if (c < 0)
+					throw new EOFException();
+
+				if (c == '\\') {
+					c = ldap.read();
+					if (c < 0)
+						throw new EOFException();
+				} else if (c == '*') {
+					regex = true;
+					sb.append(".");
+				} else if (c == ')')
+					break;
+
+				sb.append((char) c);
+				c = ldap.read();
+			}
+			Matcher m = SIMPLE_EXPR.matcher(sb);
+			if (!m.matches())
+				throw new IllegalArgumentException("Not a valid LDAP expression " + sb);
+
+			return new Simple(m.group(1), m.group(2), m.group(3), regex);
+		}
+	}
+
+	private static List<Expr> exprs(Reader ldap) throws Exception {
+		int c;
+		do {
+			c = ldap.read();
+		} while (Character.isWhitespace(c));
+
+		List<Expr> list = new ArrayList<Expr>();
+		while (c == '(') {
+			list.add(expr(ldap, c));
+
+			// read ( for another or ) for close
+			c = ldap.read();
+		}
+		return list;
+	}
+}
@@ -0,0 +1,114 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Group commit of inserts. The first insert of a group waits a short window
+ * for other inserts to join, then the group is written in one unordered and
+ * journaled bulk operation. So concurrent writers share one acknowledgment
+ * instead of waiting for the journal one by one. The errors of the bulk
+ * operation are reported per insert, a duplicate key makes the insert answer
+ * false like a single insert.
+ */
+class GroupCommit {
+	final static long	WINDOW			= 5;
+	final static int	DUPLICATE_KEY	= 11000;
+
+	final DBCollection	collection;
+	final long			window;
+	List<Entry>			group			= new ArrayList<>();
+
+	static class Entry {
+		final DBObject						o;
+		final CompletableFuture<Boolean>	done	= new CompletableFuture<>();
+
+		Entry(DBObject o) {
+			this.o = o;
+		}
+	}
+
+	GroupCommit(DBCollection collection, long window) {
+		this.collection = collection;
+		this.window = window;
+	}
+
+	/**
+	 * Insert an object as part of a group.
+	 * 
+	 * @return true if inserted, false if the key already existed
+	 */
+	boolean insert(DBObject o) throws Exception {
+		Entry entry = new Entry(o);
+		boolean leader;
+		synchronized (this) {
+			group.add(entry);
+			leader = group.size() == 1;
+		}
+
+		if (leader) {
+			// the group is always committed, the followers wait for it
+			try {
+				Thread.sleep(window);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				List<Entry> entries;
+				synchronized (this) {
+					entries = group;
+					group = new ArrayList<>();
+				}
+				commit(entries);
+			}
+		}
+
+		try {
+			return entry.done.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+	}
+
+	void commit(List<Entry> entries) {
+		try {
+			BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+			for (Entry entry : entries)
+				bulk.insert(entry.o);
+			bulk.execute(WriteConcern.JOURNALED);
+			for (Entry entry : entries)
+				entry.done.complete(true);
+		} catch (BulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				Entry entry = entries.get(error.getIndex());
+				if (error.getCode() == DUPLICATE_KEY)
+					entry.done.complete(false);
+				else
+					entry.done.completeExceptionally(new MongoException(error.getCode(), error.getMessage()));
+			}
+			for (Entry entry : entries) {
+				if (e.getWriteConcernError() != null)
+					entry.done.completeExceptionally(e);
+				else
+					entry.done.complete(true);
+			}
+		} catch (RuntimeException | Error e) {
+			for (Entry entry : entries)
+				entry.done.completeExceptionally(e);
+			if (e instanceof Error)
+				throw e;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package aQute.impl.store.mongo;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import aQute.open.store.api.Store;
+
+/**
+ * Resolves the references of a batch of documents to the objects of another
+ * store with a single {@link Store#getAll(Collection)}. The reference field
+ * can hold an id or a collection or array of ids, the attach function is
+ * called for each referenced object that exists.
+ */
+class Include<T, R> {
+	final Field				field;
+	final Store<R>			target;
+	final BiConsumer<T, R>	attach;
+
+	Include(Field field, Store<R> target, BiConsumer<T, R> attach) {
+		this.field = field;
+		this.target = target;
+		this.attach = attach;
+	}
+
+	void resolve(List<T> batch) throws Exception {
+		List<Object> ids = new ArrayList<>();
+		List<T> owners = new ArrayList<>();
+
+		for (T document : batch) {
+			Object ref = field.get(document);
+			if (ref instanceof Collection) {
+				for (Object id : (Collection< ? >) ref)
+					add(ids, owners, id, document);
+			} else if (ref != null && ref.getClass().isArray() && !(ref instanceof byte[])) {
+				for (int i = 0; i < Array.getLength(ref); i++)
+					add(ids, owners, Array.get(ref, i), document);
+			} else
+				add(ids, owners, ref, document);
+		}
+		if (ids.isEmpty())
+			return;
+
+		List<R> found = target.getAll(ids);
+		for (int i = 0; i < ids.size(); i++) {
+			R r = found.get(i);
+			if (r != null)
+				attach.accept(owners.get(i), r);
+		}
+	}
+
+	private void add(List<Object> ids, List<T> owners, Object id, T document) {
+		if (id == null)
+			return;
+		ids.add(id);
+		owners.add(document);
+	}
+}
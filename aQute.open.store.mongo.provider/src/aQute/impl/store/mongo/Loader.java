@@ -0,0 +1,217 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import aQute.open.store.api.LoadOptions;
+import aQute.open.store.api.LoadReport;
+import aQute.open.store.api.WriteMode;
+
+/**
+ * Inserts the objects of a stream. The calling thread reads the stream in
+ * chunks and submits each chunk to a fork join pool that assigns the ids and
+ * encodes the objects. The encoded chunks are taken in order and packed in
+ * batches up to a number of BSON bytes. The batches are put in a bounded
+ * queue that is drained by the writer threads, each batch is an unordered
+ * bulk insert. The queue and the limit on the chunks in flight make the
+ * reading of the stream wait for the writers.
+ * <p>
+ * Every object keeps its position in the stream, the errors of the encoding
+ * and the bulk writes are reported by this position.
+ */
+class Loader<T> {
+	final static int			CHUNK	= 256;
+	final static Batch			END		= new Batch();
+
+	final MongoStoreImpl<T>		store;
+	final LoadOptions			options;
+	final LoadReport			report	= new LoadReport();
+
+	/*
+	 * An encoded object or the error that prevented the encoding
+	 */
+	static class Encoded {
+		long		index;
+		DBObject	o;
+		int			size;
+		String		error;
+	}
+
+	static class Batch {
+		final List<Encoded>	objects	= new ArrayList<>();
+		long				bytes;
+	}
+
+	Loader(MongoStoreImpl<T> store, LoadOptions options) {
+		this.store = store;
+		this.options = options;
+	}
+
+	LoadReport run(Stream<T> source) throws Exception {
+		int parallelism = options.parallelism > 0 ? options.parallelism : Runtime.getRuntime().availableProcessors();
+		int writers = Math.max(1, options.writers);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		ExecutorService executor = Executors.newFixedThreadPool(writers);
+		BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(Math.max(1, options.queue));
+		for (int i = 0; i < writers; i++)
+			executor.execute(() -> drain(queue));
+
+		try {
+			Deque<ForkJoinTask<List<Encoded>>> inflight = new ArrayDeque<>();
+			Batch batch = new Batch();
+			Iterator<T> it = source.iterator();
+			long index = 0;
+
+			while (it.hasNext()) {
+				List<T> chunk = new ArrayList<>(CHUNK);
+				long start = index;
+				while (chunk.size() < CHUNK && it.hasNext()) {
+					chunk.add(it.next());
+					index++;
+				}
+				inflight.addLast(pool.submit(() -> encode(chunk, start)));
+
+				while (!inflight.isEmpty() && (inflight.size() > parallelism * 2 || inflight.peekFirst().isDone()))
+					batch = pack(inflight.removeFirst().join(), batch, queue);
+			}
+			while (!inflight.isEmpty())
+				batch = pack(inflight.removeFirst().join(), batch, queue);
+
+			if (!batch.objects.isEmpty())
+				queue.put(batch);
+		} finally {
+			for (int i = 0; i < writers; i++)
+				queue.put(END);
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			pool.shutdownNow();
+		}
+
+		Collections.sort(report.duplicates);
+		return report;
+	}
+
+	/*
+	 * Assign the ids and encode the objects of a chunk
+	 */
+	private List<Encoded> encode(List<T> chunk, long start) {
+		BasicBSONEncoder encoder = new BasicBSONEncoder();
+		List<Encoded> result = new ArrayList<>(chunk.size());
+		for (T document : chunk) {
+			Encoded e = new Encoded();
+			e.index = start + result.size();
+			try {
+				store.assignId(document);
+				e.o = (DBObject) store.mcnv.toMongo(document);
+				e.size = encoder.encode(e.o).length;
+			} catch (Exception ex) {
+				e.error = ex.toString();
+			}
+			result.add(e);
+		}
+		return result;
+	}
+
+	/*
+	 * Add the encoded objects to the batch, queue the batch when the next
+	 * object does not fit anymore
+	 */
+	private Batch pack(List<Encoded> encoded, Batch batch, BlockingQueue<Batch> queue) throws InterruptedException {
+		for (Encoded e : encoded) {
+			if (e.error != null) {
+				error(e.index, e.error);
+				continue;
+			}
+			if (!batch.objects.isEmpty() && batch.bytes + e.size > options.batchBytes) {
+				queue.put(batch);
+				batch = new Batch();
+			}
+			batch.objects.add(e);
+			batch.bytes += e.size;
+		}
+		return batch;
+	}
+
+	private void drain(BlockingQueue<Batch> queue) {
+		try {
+			Batch batch;
+			while ((batch = queue.take()) != END)
+				write(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(Batch batch) {
+		WriteMode mode = options.mode == null ? store.writeMode : options.mode;
+		WriteConcern concern = MongoStoreImpl.concern(mode);
+
+		BulkWriteOperation bulk = store.collection.initializeUnorderedBulkOperation();
+		for (Encoded e : batch.objects)
+			bulk.insert(e.o);
+
+		boolean[] failed = new boolean[batch.objects.size()];
+		try {
+			bulk.execute(concern);
+		} catch (BulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				long index = batch.objects.get(error.getIndex()).index;
+				failed[error.getIndex()] = true;
+				if (error.getCode() == GroupCommit.DUPLICATE_KEY)
+					synchronized (report) {
+						report.duplicates.add(index);
+					}
+				else
+					error(index, error.getMessage());
+			}
+			if (e.getWriteConcernError() != null)
+				for (int i = 0; i < failed.length; i++)
+					if (!failed[i]) {
+						failed[i] = true;
+						error(batch.objects.get(i).index, e.getWriteConcernError().getMessage());
+					}
+		} catch (RuntimeException e) {
+			for (int i = 0; i < failed.length; i++) {
+				failed[i] = true;
+				error(batch.objects.get(i).index, e.toString());
+			}
+		}
+
+		int inserted = 0;
+		for (int i = 0; i < failed.length; i++)
+			if (!failed[i]) {
+				store.indexed(batch.objects.get(i).o);
+				inserted++;
+			}
+		synchronized (report) {
+			report.inserted += inserted;
+		}
+	}
+
+	private void error(long index, String message) {
+		synchronized (report) {
+			report.errors.put(index, message);
+		}
+	}
+}
@@ -0,0 +1,486 @@
+package aQute.impl.store.mongo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.osgi.service.log.LogService;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.open.store.api.Blobs;
+
+/**
+ * The blobs of a store in its GridFS bucket. A blob is uploaded in a single
+ * pass under a temporary name while its SHA-1 is calculated. When the upload
+ * is complete, the blob is renamed to its SHA-1 or, when that blob already
+ * exists, it is removed again. The unique index on the filename makes the
+ * rename fail when a concurrent put of the same content renamed first.
+ */
+@SuppressWarnings("deprecation")
+class MongoBlobsImpl implements Blobs {
+	final static String			TMP		= "tmp-";
+	final static long			ORPHAN	= 24 * 60 * 60 * 1000;
+
+	final MongoStoreImpl< ? >	store;
+
+	MongoBlobsImpl(MongoStoreImpl< ? > store) {
+		this.store = store;
+	}
+
+	@Override
+	public String put(InputStream in) throws Exception {
+		if (store.handler != null)
+			store.handler.bucket(store);
+
+		DigestInputStream din = new DigestInputStream(in, MessageDigest.getInstance("SHA-1"));
+		try {
+			GridFSInputFile gf = store.getGridFs().createFile(din, TMP + ObjectId.get());
+			gf.save();
+
+			String sha = Hex.toHexString(din.getMessageDigest().digest());
+			if (exists(sha))
+				store.getGridFs().remove((ObjectId) gf.getId());
+			else
+				try {
+					files().update(new BasicDBObject("_id", gf.getId()),
+							new BasicDBObject("$set", new BasicDBObject("filename", sha)));
+				} catch (DuplicateKeyException e) {
+					// a concurrent put stored the same content
+					store.getGridFs().remove((ObjectId) gf.getId());
+				}
+			return sha;
+		} finally {
+			din.close();
+		}
+	}
+
+	/*
+	 * The files collection of the bucket, the filename has a unique index
+	 */
+	DBCollection files() {
+		return store.collection.getDB().getCollection(store.collection.getName() + ".files");
+	}
+
+	/*
+	 * Make the filenames unique and remove the uploads that were never
+	 * renamed because the process died. This is done once per bucket.
+	 */
+	void prepare(LogService log) {
+		try {
+			files().createIndex(new BasicDBObject("filename", 1), new BasicDBObject("unique", true));
+		} catch (MongoException e) {
+			log.log(LogService.LOG_WARNING, "Cannot make the blob names of " + store.collection.getName()
+					+ " unique, concurrent puts of the same content can store it twice", e);
+		}
+		store.getGridFs().remove(new BasicDBObject("filename", new BasicDBObject("$regex", "^" + TMP)).append(
+				"uploadDate", new BasicDBObject("$lt", new Date(System.currentTimeMillis() - ORPHAN))));
+	}
+
+	@Override
+	public InputStream get(String sha) throws Exception {
+		GridFSDBFile file = store.getGridFs().findOne(sha);
+		if (file == null)
+			return null;
+
+		return new Verifier(file.getInputStream(), sha);
+	}
+
+	@Override
+	public BlobFile file(String sha) {
+		return new BlobFile(this, sha);
+	}
+
+	@Override
+	public SeekableByteChannel open(String sha) throws Exception {
+		BlobCache cache = cache();
+		File cached = cache == null ? null : cache.peek(sha);
+		if (cached != null)
+			return FileChannel.open(cached.toPath(), StandardOpenOption.READ);
+
+		GridFSDBFile file = store.getGridFs().findOne(sha);
+		if (file == null)
+			return null;
+
+		DBCollection chunks = store.collection.getDB().getCollection(store.collection.getName() + ".chunks");
+		Object id = file.getId();
+		return new ChunkChannel(n -> {
+			DBObject chunk = chunks.findOne(new BasicDBObject("files_id", id).append("n", n));
+			if (chunk == null)
+				throw new IOException("Missing chunk " + n + " of blob " + sha);
+			return (byte[]) chunk.get("data");
+		}, file.getLength(), (int) file.getChunkSize());
+	}
+
+	@Override
+	public long transfer(String sha, long position, long count, WritableByteChannel target) throws Exception {
+		try (SeekableByteChannel channel = open(sha)) {
+			if (channel == null)
+				throw new FileNotFoundException("No such blob " + sha);
+			return transfer(channel, position, count, target);
+		}
+	}
+
+	/*
+	 * A file channel transfers directly, otherwise the chunks are copied
+	 */
+	static long transfer(SeekableByteChannel channel, long position, long count, WritableByteChannel target)
+			throws IOException {
+		long end = Math.min(position + count, channel.size());
+		long done = 0;
+
+		if (channel instanceof FileChannel) {
+			FileChannel fc = (FileChannel) channel;
+			while (position + done < end)
+				done += fc.transferTo(position + done, end - position - done, target);
+			return done;
+		}
+
+		channel.position(position);
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(end - position, 64 * 1024)));
+		while (position + done < end) {
+			buffer.clear();
+			if (buffer.remaining() > end - position - done)
+				buffer.limit((int) (end - position - done));
+			if (channel.read(buffer) < 0)
+				break;
+			buffer.flip();
+			while (buffer.hasRemaining())
+				done += target.write(buffer);
+		}
+		return done;
+	}
+
+	@Override
+	public boolean exists(String sha) {
+		return store.getGridFs().findOne(sha) != null;
+	}
+
+	/*
+	 * Fetch the content of a blob in a local file. The file is in the blob
+	 * cache if there is one, otherwise it is a temporary file named after the
+	 * SHA-1 that is shared by all fetches of the blob and removed on exit.
+	 */
+	File fetch(String sha) throws Exception {
+		BlobCache cache = cache();
+		if (cache != null)
+			return cache.get(sha, this::raw);
+
+		InputStream in = get(sha);
+		if (in == null)
+			throw new FileNotFoundException("No such blob " + sha);
+
+		File out = new File(System.getProperty("java.io.tmpdir"), "mongostore-" + sha);
+		if (out.isFile())
+			return out;
+
+		File tmp = File.createTempFile("mongostore", ".tmp");
+		try {
+			try (FileOutputStream fout = new FileOutputStream(tmp)) {
+				IO.copy(in, fout);
+			}
+			try {
+				Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				// fetched concurrently, the name guarantees the content
+			}
+			out.deleteOnExit();
+			return out;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private BlobCache cache() {
+		return store.handler == null ? null : store.handler.cache;
+	}
+
+	/*
+	 * The content of a blob without verification or null
+	 */
+	InputStream raw(String sha) {
+		GridFSDBFile file = store.getGridFs().findOne(sha);
+		return file == null ? null : file.getInputStream();
+	}
+
+	/**
+	 * Verifies the content against the SHA-1 when the end of the stream is
+	 * reached.
+	 */
+	static class Verifier extends DigestInputStream {
+		final String	sha;
+		boolean			verified;
+
+		Verifier(InputStream in, String sha) throws Exception {
+			super(in, MessageDigest.getInstance("SHA-1"));
+			this.sha = sha;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c < 0)
+				verify();
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0)
+				verify();
+			return n;
+		}
+
+		/*
+		 * Skipped bytes must be digested as well
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+				if (r < 0)
+					break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		private void verify() throws IOException {
+			if (verified)
+				return;
+
+			verified = true;
+			String calculated = Hex.toHexString(getMessageDigest().digest());
+			if (!calculated.equalsIgnoreCase(sha))
+				throw new IOException(
+						"Received invalid file from gridfs, sha does not match. Got " + calculated + " expected " + sha);
+		}
+	}
+
+	/**
+	 * A file for a blob that fetches the content on the first access to its
+	 * path or content. The name of the file is the SHA-1 so it can be stored
+	 * again without fetching the content.
+	 */
+	@SuppressWarnings("serial")
+	static class BlobFile extends File {
+		final transient MongoBlobsImpl	blobs;
+		final String					sha;
+		transient File					file;
+
+		BlobFile(MongoBlobsImpl blobs, String sha) {
+			super(sha);
+			this.blobs = blobs;
+			this.sha = sha;
+		}
+
+		synchronized File file() {
+			if (file == null || !file.isFile())
+				try {
+					file = blobs.fetch(sha);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			return file;
+		}
+
+		/*
+		 * The fetched file or null if the blob does not exist. Like a File,
+		 * the queries on a missing blob answer false or 0.
+		 */
+		File existing() {
+			try {
+				return file();
+			} catch (UncheckedIOException e) {
+				if (e.getCause() instanceof FileNotFoundException)
+					return null;
+				throw e;
+			}
+		}
+
+		/*
+		 * The fetched file, or for a missing blob a relative file named after
+		 * the SHA-1 like this file.
+		 */
+		File local() {
+			File file = existing();
+			return file == null ? new File(sha) : file;
+		}
+
+		@Override
+		public String getPath() {
+			return local().getPath();
+		}
+
+		@Override
+		public String getAbsolutePath() {
+			return local().getAbsolutePath();
+		}
+
+		@Override
+		public File getAbsoluteFile() {
+			return local().getAbsoluteFile();
+		}
+
+		@Override
+		public String getCanonicalPath() throws IOException {
+			return local().getCanonicalPath();
+		}
+
+		@Override
+		public File getCanonicalFile() throws IOException {
+			return local().getCanonicalFile();
+		}
+
+		@Override
+		public String getParent() {
+			return local().getParent();
+		}
+
+		@Override
+		public File getParentFile() {
+			return local().getParentFile();
+		}
+
+		@Override
+		public Path toPath() {
+			return local().toPath();
+		}
+
+		@Override
+		public URI toURI() {
+			return local().toURI();
+		}
+
+		@Override
+		public boolean exists() {
+			File file = existing();
+			return file == null ? false : file.exists();
+		}
+
+		@Override
+		public boolean isFile() {
+			File file = existing();
+			return file == null ? false : file.isFile();
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return false;
+		}
+
+		@Override
+		public boolean canRead() {
+			File file = existing();
+			return file == null ? false : file.canRead();
+		}
+
+		@Override
+		public long length() {
+			File file = existing();
+			return file == null ? 0L : file.length();
+		}
+
+		@Override
+		public long lastModified() {
+			File file = existing();
+			return file == null ? 0L : file.lastModified();
+		}
+
+		@Override
+		public synchronized boolean delete() {
+			return file == null || file.delete();
+		}
+
+		@Override
+		public String toString() {
+			return file == null ? "blob:" + sha : file.toString();
+		}
+	}
+
+	/**
+	 * A stream on a blob that is only opened on the first read. The stream is
+	 * stored again as its blob, also after some of it was read, so the content
+	 * is never fetched to store it.
+	 */
+	static class BlobInputStream extends InputStream {
+		final MongoBlobsImpl	blobs;
+		final String			sha;
+		InputStream				in;
+
+		BlobInputStream(MongoBlobsImpl blobs, String sha) {
+			this.blobs = blobs;
+			this.sha = sha;
+		}
+
+		InputStream in() throws IOException {
+			if (in == null)
+				try {
+					in = blobs.get(sha);
+					if (in == null)
+						throw new FileNotFoundException("No such blob " + sha);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+			return in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in().read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			return in().skip(n);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in == null ? 0 : in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+		}
+	}
+}
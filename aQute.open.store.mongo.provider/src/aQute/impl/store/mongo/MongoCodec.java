@@ -2,7 +2,7 @@ package aQute.impl.store.mongo;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
@@ -10,33 +10,33 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
-import org.osgi.service.log.LogService;
-
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.gridfs.GridFSDBFile;
-import com.mongodb.gridfs.GridFSInputFile;
 
+import aQute.impl.store.mongo.MongoBlobsImpl.BlobFile;
+import aQute.impl.store.mongo.MongoBlobsImpl.BlobInputStream;
 import aQute.lib.converter.Converter;
 import aQute.lib.converter.Converter.Hook;
 import aQute.lib.converter.TypeReference;
-import aQute.lib.hex.Hex;
-import aQute.lib.io.IO;
 import aQute.lib.json.JSONCodec;
-import aQute.libg.cryptography.Digester;
-import aQute.libg.cryptography.SHA1;
 
-/*
- * TODO needs to handle files
- */
 public class MongoCodec {
+	final static String			SHADOW		= "_s_";
 	static TypeReference<Map<String, Object>> DTOMAP = new TypeReference<Map<String,Object>>() {};
 	Converter					converter	= new Converter().hook(File.class, new Hook() {
 
 												public Object convert(Type dest, Object o) throws Exception {
 													if (o instanceof String)
-														return retrieveFile((String) o);
+														return store.blobs.file((String) o);
+													return null;
+												}
+
+											}).hook(InputStream.class, new Hook() {
+
+												public Object convert(Type dest, Object o) throws Exception {
+													if (o instanceof String)
+														return new BlobInputStream(store.blobs, (String) o);
 													return null;
 												}
 
@@ -44,6 +44,7 @@ public class MongoCodec {
 	final static JSONCodec		codec		= new JSONCodec().setIgnorenull(true);
 	final MongoStoreImpl< ? >	store;
 	final ConcurrentHashMap<Class<?>, Field[]>  fields = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<Class<?>, Projection<?>>  projections = new ConcurrentHashMap<>();
 	
 	MongoCodec(MongoStoreImpl< ? > store) {
 		this.store = store;
@@ -99,6 +100,9 @@ public class MongoCodec {
 		if (o instanceof File)
 			return storeFile((File) o);
 
+		if (o instanceof InputStream)
+			return storeStream((InputStream) o);
+
 		if (o instanceof Number || o instanceof String || o instanceof DBObject)
 			return o;
 
@@ -141,16 +145,25 @@ public class MongoCodec {
 		}
 
 		
-		Field [] fs = fields.computeIfAbsent(o.getClass(), (key)-> {
-			return Stream.of(key.getFields()).filter( f -> !Modifier.isStatic(f.getModifiers())).toArray( n -> new Field[n]);
-		});
+		Field [] fs = fields(o.getClass());
 		
 		if (fs.length != 0) {
 			BasicDBObject dbo = new BasicDBObject();
+			boolean document = o.getClass() == store.type;
 			for (Field f : fs) {
-				Object value = toMongo(f.get(o));
-				if (value != null)
+				// the relevance of a search is not part of the document
+				if (document && f.getName().equals(MongoCursorImpl.SCORE))
+					continue;
+
+				Object raw = f.get(o);
+				Object value = toMongo(raw);
+				if (consumed(raw, f) && value instanceof String)
+					f.set(o, new BlobInputStream(store.blobs, (String) value));
+				if (value != null) {
 					dbo.put(f.getName(), value);
+					if (document && store.searchable.contains(f.getName()))
+						dbo.put(SHADOW + f.getName(), shadow(value));
+				}
 			}
 			return dbo;
 		}
@@ -158,37 +171,59 @@ public class MongoCodec {
 		return o.toString();
 	}
 
-	Object fromMongo(Type type, DBObject o) throws Exception {
-		return converter.convert(type, o);
+	/**
+	 * The public instance fields of a class, these are the fields that are
+	 * stored.
+	 */
+	Field[] fields(Class<?> c) {
+		return fields.computeIfAbsent(c, (key)-> {
+			return Stream.of(key.getFields()).filter( f -> !Modifier.isStatic(f.getModifiers())).toArray( n -> new Field[n]);
+		});
 	}
 
-	// TODO needs to handle the files.
-	private Object retrieveFile(String name) throws Exception {
-		if (name == null)
-			return null;
+	/**
+	 * The projection of a view class, looked up once per view.
+	 */
+	@SuppressWarnings("unchecked")
+	<P> Projection<P> projection(Class<P> view) {
+		return (Projection<P>) projections.computeIfAbsent(view, Projection::of);
+	}
 
-		GridFSDBFile file = store.getGridFs().findOne(name);
-		File out = File.createTempFile("mongostore", "sha");
-		FileOutputStream fout = new FileOutputStream(out);
-		try {
-			Digester<SHA1> digester = SHA1.getDigester(fout);
-			IO.copy(file.getInputStream(), digester);
-			String calculated = Hex.toHexString(digester.digest().toByteArray());
-			if (!calculated.equals(name)) {
-				store.handler.log.log(LogService.LOG_ERROR,
-						"Received invalid file from gridfs, sha does not match. Got " + calculated + " expected "
-								+ name);
-				return null;
-			}
-			return out;
+	/**
+	 * The shadow value of a searchable field, the Strings are folded to lower
+	 * case without diacritical marks.
+	 */
+	Object shadow(Object value) {
+		if (value instanceof String)
+			return Search.fold((String) value);
+
+		if (value instanceof Iterable) {
+			BasicDBList list = new BasicDBList();
+			for (Object member : (Iterable< ? >) value)
+				list.add(shadow(member));
+			return list;
 		}
-		finally {
-			fout.close();
+
+		if (value instanceof Object[]) {
+			BasicDBList list = new BasicDBList();
+			for (Object member : (Object[]) value)
+				list.add(shadow(member));
+			return list;
 		}
+		return value;
+	}
+
+	Object fromMongo(Type type, DBObject o) throws Exception {
+		if (type == store.type)
+			for (String name : store.searchable)
+				o.removeField(SHADOW + name);
+
+		return converter.convert(type, o);
 	}
 
 	/**
-	 * File objects are stored in the GridFS store under their hex SHA1.
+	 * File objects are stored as blobs under their hex SHA1. A file of a blob
+	 * that was read is not fetched again.
 	 * 
 	 * @param file
 	 * @return
@@ -198,17 +233,31 @@ public class MongoCodec {
 		if (file == null)
 			return null;
 
-		Digester<SHA1> digester = SHA1.getDigester();
-		FileInputStream fin = new FileInputStream(file);
-		IO.copy(fin, digester);
-		String name = Hex.toHexString(digester.digest().toByteArray());
-		if (store.getGridFs().findOne(name) != null)
-			return name;
-
-		GridFSInputFile gf = store.getGridFs().createFile(file);
-		gf.setFilename(name);
-		gf.save();
-		return gf.getFilename();
+		if (file instanceof BlobFile)
+			return ((BlobFile) file).sha;
+
+		return store.blobs.put(new FileInputStream(file));
+	}
+
+	/*
+	 * A stream that was stored is read to the end. The field is replaced with
+	 * a stream of the stored blob, so a later write stores the same blob and
+	 * not an empty one.
+	 */
+	private static boolean consumed(Object raw, Field f) {
+		return raw instanceof InputStream && !(raw instanceof BlobInputStream)
+				&& f.getType().isAssignableFrom(BlobInputStream.class);
+	}
+
+	/**
+	 * Streams are stored as blobs, this consumes the stream. A stream of a blob
+	 * is stored as that blob, whatever was read from it.
+	 */
+	private String storeStream(InputStream in) throws Exception {
+		if (in instanceof BlobInputStream)
+			return ((BlobInputStream) in).sha;
+
+		return store.blobs.put(in);
 	}
 
 	/*
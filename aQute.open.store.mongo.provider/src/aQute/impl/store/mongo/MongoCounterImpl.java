@@ -0,0 +1,124 @@
+package aQute.impl.store.mongo;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.service.log.LogService;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import aQute.open.store.api.Counter;
+
+/**
+ * A counter that is spread over a number of stripe documents in the counters
+ * collection of a store. A stripe has the _id {@code <name>#<n>}, the name of
+ * the counter, and its count. An increment is an upsert of a single stripe so
+ * concurrent increments only contend when they hit the same stripe. The
+ * stripe is chosen by the thread, so a thread keeps hitting the same stripe.
+ * <p>
+ * A buffered counter adds to a local adder and a scheduled task adds the sum
+ * to a random stripe.
+ */
+class MongoCounterImpl implements Counter {
+	final DBCollection			counters;
+	final String				name;
+	final int					stripes;
+	final LongAdder				pending;
+	final ScheduledFuture< ? >	flusher;
+
+	MongoCounterImpl(DBCollection counters, String name, int stripes, long flush, ScheduledExecutorService scheduler,
+			LogService log) {
+		if (stripes < 1)
+			throw new IllegalArgumentException("A counter needs at least one stripe " + stripes);
+
+		this.counters = counters;
+		this.name = name;
+		this.stripes = stripes;
+		counters.createIndex(new BasicDBObject("name", 1));
+
+		if (flush > 0) {
+			pending = new LongAdder();
+			flusher = scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					flush();
+				} catch (Exception e) {
+					log.log(LogService.LOG_ERROR, "Could not flush counter " + name + ", will retry", e);
+				}
+			}, flush, flush, TimeUnit.MILLISECONDS);
+		} else {
+			pending = null;
+			flusher = null;
+		}
+	}
+
+	@Override
+	public void add(long delta) throws Exception {
+		if (pending != null)
+			pending.add(delta);
+		else
+			write((int) (Thread.currentThread().getId() % stripes), delta);
+	}
+
+	@Override
+	public void increment() throws Exception {
+		add(1);
+	}
+
+	@Override
+	public long get() throws Exception {
+		long sum = pending == null ? 0 : pending.sum();
+		try (DBCursor cursor = counters.find(new BasicDBObject("name", name), new BasicDBObject("count", 1))) {
+			while (cursor.hasNext()) {
+				Object count = cursor.next().get("count");
+				if (count instanceof Number)
+					sum += ((Number) count).longValue();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Add the local increments to a random stripe. If the write fails the
+	 * increments are kept for the next flush. The flushed sum is subtracted
+	 * instead of resetting the adder so concurrent increments are not lost;
+	 * flushes do not overlap, each subtracts what it wrote.
+	 */
+	@Override
+	public synchronized void flush() throws Exception {
+		if (pending == null)
+			return;
+
+		long delta = pending.sum();
+		if (delta == 0)
+			return;
+
+		pending.add(-delta);
+		try {
+			write(ThreadLocalRandom.current().nextInt(stripes), delta);
+		} catch (Exception e) {
+			pending.add(delta);
+			throw e;
+		}
+	}
+
+	/*
+	 * Stop flushing periodically and write the remaining increments
+	 */
+	void close() throws Exception {
+		if (flusher != null)
+			flusher.cancel(false);
+		flush();
+	}
+
+	private void write(int stripe, long delta) {
+		DBObject update = new BasicDBObject("$inc", new BasicDBObject("count", delta)).append("$setOnInsert",
+				new BasicDBObject("name", name));
+		counters.update(new BasicDBObject("_id", name + "#" + stripe), update, true, false);
+	}
+}
@@ -4,33 +4,40 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Formatter;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Spliterator;
 import java.util.Spliterators;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 
 import aQute.lib.converter.Converter;
+import aQute.open.store.api.ChunkReport;
 import aQute.open.store.api.Cursor;
+import aQute.open.store.api.Page;
+import aQute.open.store.api.RateLimit;
+import aQute.open.store.api.Store;
+import aQute.open.store.api.TransformReport;
+import aQute.open.store.api.WriteMode;
 
 public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
-	static Pattern QUERY = Pattern.compile("(\\w+):([^()=><]+)");
-
 	enum Ops {
 		INC, SET, UNSET, ADD, REMOVE, APPEND;
 	}
 
+	final static String		SCORE		= "_score";
+	final static int		INCLUDE_BATCH	= 100;
 	static DBObject			EMPTY		= new BasicDBObject();
 	static Converter		converter	= new Converter();
 	final MongoStoreImpl<T>	store;
@@ -42,6 +49,11 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 	int						skip;
 	int						limit;
 	T						target;
+	boolean					search;
+	boolean					optimistic;
+	boolean					upsert;
+	WriteMode				mode;
+	final List<Include<T, ? >>	includes	= new ArrayList<>();
 
 	public MongoCursorImpl(MongoStoreImpl<T> store) {
 		this.store = store;
@@ -49,6 +61,7 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 
 	public MongoCursorImpl(MongoStoreImpl<T> store, T target) throws Exception {
 		this(store);
+		this.target = target;
 		or(target);
 	}
 
@@ -114,29 +127,97 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 	public Iterator<T> iterator() {
 		final DBCursor cursor = getDBCursor();
 
-		return new Iterator<T>() {
+		final Iterator<T> documents = new Iterator<T>() {
 
 			public boolean hasNext() {
 				return cursor.hasNext();
 			}
 
-			@SuppressWarnings("unchecked")
 			public T next() {
-				DBObject object = cursor.next();
-				try {
-					return (T) store.mcnv.fromMongo(store.type, object);
-				} catch (Exception e) {
-					e.printStackTrace();
-					throw new RuntimeException(e);
-				}
+				return decode(cursor.next());
 			}
 
 			public void remove() {
 				cursor.remove();
 			}
 		};
+		if (includes.isEmpty())
+			return documents;
+
+		/*
+		 * Read ahead a batch and resolve the references of the whole batch
+		 */
+		return new Iterator<T>() {
+			Iterator<T> batch = Collections.emptyIterator();
+
+			public boolean hasNext() {
+				return batch.hasNext() || documents.hasNext();
+			}
+
+			public T next() {
+				if (!batch.hasNext()) {
+					List<T> next = new ArrayList<>(INCLUDE_BATCH);
+					while (next.size() < INCLUDE_BATCH && documents.hasNext())
+						next.add(documents.next());
+					resolve(next);
+					batch = next.iterator();
+				}
+				return batch.next();
+			}
+		};
 	}
 
+	public <R> MongoCursorImpl<T> include(String refField, Store<R> target, BiConsumer<T, R> attach)
+			throws Exception {
+		includes.add(new Include<T, R>(store.type.getField(refField), target, attach));
+		return this;
+	}
+
+	void resolve(List<T> batch) {
+		try {
+			for (Include<T, ? > include : includes)
+				include.resolve(batch);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	T decode(DBObject object) {
+		if (search && !store.scored)
+			object.removeField(SCORE);
+		try {
+			Tracker tracker = store.tracker;
+			if (tracker == null || partial())
+				return (T) store.mcnv.fromMongo(store.type, object);
+
+			long[] hashes = tracker.hashes(object);
+			T document = (T) store.mcnv.fromMongo(store.type, object);
+			tracker.put(document, hashes);
+			return document;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * A document read with a selection of fields has the defaults in the
+	 * other fields. It is not tracked, so an update writes the whole
+	 * document instead of the fields that differ from the defaults. The
+	 * text score of a search does not restrict the fields.
+	 */
+	boolean partial() {
+		if (select == null)
+			return false;
+		for (String key : select.keySet())
+			if (!key.equals(SCORE))
+				return true;
+		return false;
+	}
 
 	/**
 	 * Answer the distinct values for a given field.
@@ -185,10 +266,33 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 	}
 
 	public int remove() {
-		WriteResult result = where == null ? store.collection.remove(new BasicDBObject())
-				: store.collection.remove(where);
+		store.barrier();
+		WriteResult result = store.collection.remove(where == null ? new BasicDBObject() : where,
+				MongoStoreImpl.concern(mode()));
 		store.error(result);
-		return result.getN();
+		return MongoStoreImpl.count(result);
+	}
+
+	public ChunkReport removeInChunks(int chunkSize, RateLimit limit) throws Exception {
+		return removeInChunks(chunkSize, limit, null);
+	}
+
+	public ChunkReport removeInChunks(int chunkSize, RateLimit limit, Object after) throws Exception {
+		store.barrier();
+		return new Chunker(store, where, null, MongoStoreImpl.acknowledged(mode())).run(chunkSize, limit, after);
+	}
+
+	public ChunkReport updateInChunks(int chunkSize, RateLimit limit) throws Exception {
+		return updateInChunks(chunkSize, limit, null);
+	}
+
+	public ChunkReport updateInChunks(int chunkSize, RateLimit limit, Object after) throws Exception {
+		if (update == null)
+			throw new IllegalStateException("No update set, use set, inc, etc. before updating");
+
+		store.barrier();
+		return new Chunker(store, where, store.versioned(update), MongoStoreImpl.acknowledged(mode())).run(chunkSize,
+				limit, after);
 	}
 
 	private MongoCursorImpl<T> sort(String field, int i) {
@@ -267,12 +371,83 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 		if (value instanceof Enum)
 			value = value.toString();
 		o.put(field, value);
+		if (store.searchable.contains(field) && !op.equals("$inc"))
+			o.put(MongoCodec.SHADOW + field, store.mcnv.shadow(value));
+
+		if (op.equals("$set") || op.equals("$pushAll"))
+			store.indexed(field, value);
 	}
 
+	/**
+	 * Update the selection, this increments the version. An optimistic update
+	 * answers 0 when the version was changed, otherwise the target object gets
+	 * the new version. In write behind mode an update of a single _id is
+	 * buffered and answers 1.
+	 */
 	public int update() {
-		WriteResult result = store.collection.update(where == null ? EMPTY : where, update, false, true);
+		WriteBehind buffer = store.writeBehind;
+		if (buffer != null && !optimistic && buffer.offer(where, store.versioned(update)))
+			return 1;
+
+		store.barrier();
+		WriteConcern concern = optimistic ? MongoStoreImpl.acknowledged(mode()) : MongoStoreImpl.concern(mode());
+		WriteResult result = store.collection.update(where == null ? EMPTY : where, store.versioned(update), false,
+				true, concern);
 		store.error(result);
-		return result.getN();
+		int n = MongoStoreImpl.count(result);
+		if (optimistic && n > 0)
+			try {
+				store.increment(target);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		return n;
+	}
+
+	public MongoCursorImpl<T> writeMode(WriteMode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	private WriteMode mode() {
+		return mode == null ? store.writeMode : mode;
+	}
+
+	public MongoCursorImpl<T> upsert() {
+		this.upsert = true;
+		return this;
+	}
+
+	public Optional<T> modifyAndGet() {
+		return findAndModify(true);
+	}
+
+	public Optional<T> getAndModify() {
+		return findAndModify(false);
+	}
+
+	/*
+	 * Update the first object of the selection in the order of the sort and
+	 * answer it before or after the update in one round trip. The update is
+	 * atomic for this object.
+	 */
+	private Optional<T> findAndModify(boolean returnNew) {
+		if (update == null)
+			throw new IllegalStateException("No update set, use set, inc, etc. before modifying");
+
+		store.barrier();
+		DBObject result = store.collection.findAndModify(where == null ? EMPTY : where, select, sort, false,
+				store.versioned(update), returnNew, upsert, MongoStoreImpl.acknowledged(mode()));
+		if (result == null)
+			return Optional.empty();
+
+		if (optimistic)
+			try {
+				store.increment(target);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		return Optional.of(decode(result));
 	}
 
 	public MongoCursorImpl<T> in(String field, Object... values) throws Exception {
@@ -283,7 +458,6 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 		if (where == null)
 			where = new BasicDBObject();
 
-		BasicDBObject in = new BasicDBObject();
 		List<Object> list = new ArrayList<Object>();
 		Field f = store.type.getField(field);
 		for (Object value : values) {
@@ -292,7 +466,7 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 
 			list.add(converter.convert(f.getGenericType(), value));
 		}
-		where.put(field, in);
+		where.put(field, new BasicDBObject("$in", list));
 		return this;
 	}
 
@@ -402,6 +576,114 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 		}
 	}
 
+	/**
+	 * A keyset page. One object more than the size is read to know if there
+	 * is a next page. The sort, select, and where of this cursor are not
+	 * changed, so the cursor can be used for the next page.
+	 */
+	@Override
+	public Page<T> page(int size, String token) throws Exception {
+		if (size < 1)
+			throw new IllegalArgumentException("Page size must be positive " + size);
+
+		DBObject sort = new BasicDBObject();
+		if (this.sort != null)
+			sort.putAll(this.sort);
+		if (!sort.containsField("_id"))
+			sort.put("_id", 1);
+
+		List<String> keys = new ArrayList<>(sort.keySet());
+		for (String key : keys)
+			if (!(sort.get(key) instanceof Number))
+				throw new IllegalArgumentException("Cannot page on sort " + key + ":" + sort.get(key)
+						+ ", a relevance ranked search cannot be paged");
+
+		DBObject select = null;
+		if (this.select != null) {
+			select = new BasicDBObject();
+			select.putAll(this.select);
+			for (String key : keys)
+				select.put(key, 1);
+		}
+
+		DBObject where = this.where;
+		if (token != null) {
+			DBObject after = after(sort, PageToken.decode(token, keys.size()));
+			where = where == null ? after : new BasicDBObject("$and", Arrays.asList(where, after));
+		}
+
+		List<T> items = new ArrayList<>(size);
+		List<Object> last = null;
+		try (DBCursor cursor = store.collection.find(where, select).sort(sort).limit(size + 1)) {
+			while (cursor.hasNext() && items.size() < size) {
+				DBObject o = cursor.next();
+				last = PageToken.values(o, keys);
+				items.add(decode(o));
+			}
+
+			resolve(items);
+			Page<T> page = new Page<>();
+			page.items = items;
+			if (cursor.hasNext())
+				page.nextToken = PageToken.encode(last);
+			return page;
+		}
+	}
+
+	/*
+	 * Select the objects after the given values in the sort order. For sort
+	 * keys k1..kn this is an or of (k1 = v1 ... k(i-1) = v(i-1), ki > vi),
+	 * with < for descending keys. A missing value sorts as null, before all
+	 * other values, and a comparison with null matches nothing. So after null
+	 * is any value that is not null, before null is nothing, and before a
+	 * value also includes null.
+	 */
+	static DBObject after(DBObject sort, List< ? > values) {
+		List<DBObject> or = new ArrayList<>();
+		List<String> keys = new ArrayList<>(sort.keySet());
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			Object direction = sort.get(key);
+			if (!(direction instanceof Number))
+				throw new IllegalArgumentException("Cannot page on sort " + key + ":" + direction
+						+ ", a relevance ranked search cannot be paged");
+
+			boolean descending = ((Number) direction).intValue() < 0;
+			Object value = values.get(i);
+			if (descending && value == null)
+				continue;
+
+			BasicDBObject term = new BasicDBObject();
+			for (int j = 0; j < i; j++)
+				term.put(keys.get(j), values.get(j));
+
+			if (value == null)
+				term.put(key, new BasicDBObject("$ne", null));
+			else if (descending)
+				term.put("$or", Arrays.asList(new BasicDBObject(key, new BasicDBObject("$lt", value)),
+						new BasicDBObject(key, null)));
+			else
+				term.put(key, new BasicDBObject("$gt", value));
+			or.add(term);
+		}
+		return or.size() == 1 ? or.get(0) : new BasicDBObject("$or", or);
+	}
+
+	@Override
+	public TransformReport transform(Function<T, T> fn, int batchSize) throws Exception {
+		return transform(fn, batchSize, false);
+	}
+
+	/**
+	 * Transform in batches on _id, the sort, skip, limit and select of this
+	 * cursor are ignored.
+	 */
+	@Override
+	public TransformReport transform(Function<T, T> fn, int batchSize, boolean guarded) throws Exception {
+		store.barrier();
+		return new Transformer<T>(store, where, fn, guarded).run(batchSize);
+	}
+
 	/**
 	 * Index the text and set the keywords field with the tokenized texts.
 	 */
@@ -428,6 +710,59 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 		return this;
 	}
 
+	/**
+	 * Select on the values from the prefix index or a range.
+	 */
+	@Override
+	public MongoCursorImpl<T> prefix(String field, String text, int limit) throws Exception {
+		PrefixIndex index = store.prefixes.get(field);
+		if (index == null)
+			combine("$and", MongoStoreImpl.range(field, text));
+		else
+			combine("$and", new BasicDBObject(field, new BasicDBObject("$in", index.complete(text, limit))));
+		return this;
+	}
+
+	/**
+	 * Select on the keywords that are similar to the words in the query.
+	 */
+	@Override
+	public MongoCursorImpl<T> fuzzy(String q, int maxEdits) throws Exception {
+		Search search = new Search();
+		search.addAll(q);
+
+		TrigramIndex index = store.trigrams.get(TrigramIndex.KEYWORDS);
+		for (String word : search.set()) {
+			Collection<String> similar = index == null ? Collections.singleton(word) : index.similar(word, maxEdits);
+			combine("$and", new BasicDBObject("keywords", new BasicDBObject("$in", similar)));
+		}
+		return this;
+	}
+
+	/**
+	 * Search with the text index if there is one, otherwise use the keywords.
+	 */
+	@Override
+	public Cursor<T> search(String q) throws Exception {
+		assert q != null;
+		if (!store.hasTextIndex())
+			return query(q, null);
+
+		combine("$and", new BasicDBObject("$text", new BasicDBObject("$search", q)));
+
+		DBObject score = new BasicDBObject("$meta", "textScore");
+		if (select == null)
+			select = new BasicDBObject();
+		select.put(SCORE, score);
+
+		DBObject relevance = new BasicDBObject(SCORE, score);
+		if (sort != null)
+			relevance.putAll(sort);
+		sort = relevance;
+		search = true;
+		return this;
+	}
+
 	/**
 	 * Create a query based on the query string and the templates.
 	 * 
@@ -440,42 +775,13 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 	@Override
 	public Cursor<T> query(String q, Map<String, String> templates) throws Exception {
 		assert q != null;
-		String parts[] = q.split("\\s+");
-		Search positive = new Search();
-		Search negative = new Search();
-
-		try (Formatter sb = new Formatter("&(");) {
-
-			for (String p : parts) {
-				Matcher m = QUERY.matcher(p);
-				if (templates != null && m.matches()) {
-					boolean neg = m.group(1) != null;
-					String key = m.group(2);
-					String type = templates.get(key);
-
-					if (type != null) {
-						String word = m.group(3);
-						if (neg)
-							sb.format("(!(" + type + "))", word);
-						else
-							sb.format("(" + type + ")", word);
-					}
-				} else {
-					if (p.startsWith("-"))
-						negative.addAll(p);
-					else
-						positive.addAll(p);
-				}
-			}
-			for (String key : positive.set()) {
-				sb.format("(keywords=%s)", key);
-			}
-			for (String key : negative.set()) {
-				sb.format("(!(keywords=%s)", key);
-			}
-			where(sb.toString());
-			return this;
+		DBObject query = store.compiler(templates).compile(q);
+		if (query != null) {
+			// the compiled query is shared, so we combine a copy since other
+			// selections can modify the top level
+			combine("$and", new BasicDBObject(query.toMap()));
 		}
+		return this;
 	}
 
 	MongoCursorImpl<T> all() {
@@ -486,7 +792,39 @@ public class MongoCursorImpl<T> implements Iterable<T>, Cursor<T> {
 		return "MongoCursor: [" + where + "]";
 	}
 
+	/**
+	 * Decode the selection into a view. The projection replaces the select
+	 * of this cursor.
+	 */
 	@Override
+	public <P> Stream<P> project(Class<P> view) throws Exception {
+		Projection<P> projection = store.mcnv.projection(view);
+		for (String name : projection.names)
+			store.type.getField(name);
+
+		select = new BasicDBObject(projection.select.toMap());
+		DBCursor cursor = getDBCursor();
+		Iterator<P> views = new Iterator<P>() {
+
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+
+			public P next() {
+				try {
+					return projection.decode(cursor.next(), store.mcnv);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		Spliterator<P> spliterator = Spliterators.spliteratorUnknownSize(views, Spliterator.IMMUTABLE
+				+ Spliterator.ORDERED);
+		return StreamSupport.stream(spliterator, false).onClose(cursor::close);
+	}
+
 	public Stream<T> stream() {
 		Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(iterator(), Spliterator.DISTINCT+Spliterator.IMMUTABLE+Spliterator.ORDERED);
 		return StreamSupport.stream( spliterator, false);
@@ -1,13 +1,29 @@
 package aQute.impl.store.mongo;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.service.log.LogService;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
 import com.mongodb.Mongo;
 import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
@@ -26,9 +42,22 @@ import aQute.lib.converter.Converter;
  */
 @Component(designateFactory=MongoDBImpl.Config.class)
 public class MongoDBImpl implements aQute.open.store.api.DB {
-	Mongo		mongo;
-	DB			db;
-	LogService	log;
+	Mongo						mongo;
+	DB							db;
+	LogService					log;
+	ScheduledExecutorService	scheduler;
+	ScheduledExecutorService	flusher;
+	ExecutorService				executor;
+	BlobCache					cache;
+	final Map<String, MongoCounterImpl>	counters	= new ConcurrentHashMap<>();
+	final Map<String, Sequence>			sequences	= new ConcurrentHashMap<>();
+	final Map<String, WriteBehind>		writeBehinds	= new ConcurrentHashMap<>();
+	final Map<String, GroupCommit>		groupCommits	= new ConcurrentHashMap<>();
+	final Map<String, Map<String, PrefixIndex>>		prefixIndexes	= new ConcurrentHashMap<>();
+	final Map<String, Map<String, TrigramIndex>>	trigramIndexes	= new ConcurrentHashMap<>();
+	final List<ScheduledFuture< ? >>				refreshes		= new CopyOnWriteArrayList<>();
+	final Map<String, CompletableFuture<Boolean>>	backfills		= new ConcurrentHashMap<>();
+	final Set<String>								buckets			= ConcurrentHashMap.newKeySet();
 
 	public @interface Config {
 		/**
@@ -72,6 +101,18 @@ public class MongoDBImpl implements aQute.open.store.api.DB {
 		 * Replicaset
 		 */
 		String[] replicas();
+
+		/**
+		 * The directory of the local blob cache. If not set, a directory in
+		 * the temp directory named after the db is used.
+		 */
+		String blobCache();
+
+		/**
+		 * The maximum size of the local blob cache in bytes, 256Mb if not set.
+		 * A negative size disables the cache.
+		 */
+		long blobCacheSize();
 	};
 
 	Config	config;
@@ -136,6 +177,13 @@ public class MongoDBImpl implements aQute.open.store.api.DB {
 			db.authenticate(config.user(), config._password().toCharArray());
 		}
 
+		long budget = config.blobCacheSize() == 0 ? 256 * 1024 * 1024 : config.blobCacheSize();
+		if (budget > 0) {
+			File dir = config.blobCache() != null ? new File(config.blobCache())
+					: new File(System.getProperty("java.io.tmpdir"), "aQute.open.store." + config.db());
+			cache = new BlobCache(dir, budget);
+		}
+
 	}
 
 	/**
@@ -143,9 +191,202 @@ public class MongoDBImpl implements aQute.open.store.api.DB {
 	 */
 	@Deactivate
 	void deactivate() {
+		for (ScheduledFuture< ? > refresh : refreshes)
+			refresh.cancel(false);
+
+		for (WriteBehind buffer : writeBehinds.values())
+			try {
+				buffer.close();
+			} catch (Exception e) {
+				log.log(LogService.LOG_ERROR, "Could not flush the write behind buffer of "
+						+ buffer.collection.getName(), e);
+			}
+
+		for (MongoCounterImpl counter : counters.values())
+			try {
+				counter.close();
+			} catch (Exception e) {
+				log.log(LogService.LOG_ERROR, "Could not flush counter " + counter.name, e);
+			}
+
+		synchronized (this) {
+			if (scheduler != null)
+				scheduler.shutdownNow();
+			if (flusher != null)
+				flusher.shutdownNow();
+			if (executor != null)
+				executor.shutdownNow();
+		}
 		mongo.close();
 	}
 
+	/**
+	 * A scheduler for the background work of the stores, like refreshing
+	 * indexes.
+	 */
+	synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "aQute.open.store.mongo " + config.db());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A scheduler for the periodic flushes of the write behind buffers and
+	 * the counters. They promise a bounded delay, so they do not wait behind
+	 * the slow index refreshes on the other scheduler.
+	 */
+	synchronized ScheduledExecutorService flusher() {
+		if (flusher == null) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "aQute.open.store.mongo flush " + config.db());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return flusher;
+	}
+
+	/**
+	 * Run a refresh of an index periodically. A failed refresh is logged and
+	 * the next one is still run; the refreshes are cancelled on deactivate.
+	 */
+	void refresh(Runnable build, long period, String what) {
+		refreshes.add(scheduler().scheduleWithFixedDelay(() -> {
+			try {
+				build.run();
+			} catch (Exception e) {
+				log.log(LogService.LOG_ERROR, "Could not refresh the " + what, e);
+			}
+		}, period, period, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * The prefix indexes of a collection by field, shared by its stores
+	 */
+	Map<String, PrefixIndex> prefixIndexes(DBCollection collection) {
+		return prefixIndexes.computeIfAbsent(collection.getName(), k -> new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * The trigram indexes of a collection by field, shared by its stores
+	 */
+	Map<String, TrigramIndex> trigramIndexes(DBCollection collection) {
+		return trigramIndexes.computeIfAbsent(collection.getName(), k -> new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * Index and backfill the shadow fields of the searchable fields of a store
+	 * once per collection and fields, the stores are created often. The future
+	 * completes with false if the backfill failed; the stores then keep
+	 * matching the unshadowed documents.
+	 */
+	CompletableFuture<Boolean> backfill(MongoStoreImpl< ? > store) {
+		return backfills.computeIfAbsent(store.collection.getName() + "/" + new TreeSet<>(store.searchable), k -> {
+			for (String name : store.searchable)
+				store.collection.createIndex(new BasicDBObject(MongoCodec.SHADOW + name, 1));
+
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					store.backfill();
+					return true;
+				} catch (Exception e) {
+					log.log(LogService.LOG_ERROR, "Could not backfill the shadow fields of " + k, e);
+					return false;
+				}
+			}, executor());
+		});
+	}
+
+	/**
+	 * Prepare the blob bucket of a collection on the first put
+	 */
+	void bucket(MongoStoreImpl< ? > store) {
+		if (buckets.add(store.collection.getName()))
+			store.blobs.prepare(log);
+	}
+
+	/**
+	 * Counters are shared per collection and name so that a buffered counter
+	 * is only flushed by one task.
+	 */
+	MongoCounterImpl counter(DBCollection collection, String name, int stripes, long flush) {
+		return counters.computeIfAbsent(collection.getName() + "/" + name,
+				k -> new MongoCounterImpl(collection, name, stripes, flush, flush > 0 ? flusher() : null, log));
+	}
+
+	/**
+	 * The write behind buffer of a collection, shared by its stores
+	 */
+	WriteBehind writeBehind(DBCollection collection, int size, long delay) {
+		return writeBehinds.computeIfAbsent(collection.getName(),
+				k -> new WriteBehind(collection, size, delay, flusher(), log));
+	}
+
+	/**
+	 * The group commit of the inserts of a collection
+	 */
+	GroupCommit groupCommit(DBCollection collection) {
+		return groupCommits.computeIfAbsent(collection.getName(), k -> new GroupCommit(collection, GroupCommit.WINDOW));
+	}
+
+	/**
+	 * The id sequence of a collection. The counter of the sequence is a
+	 * document in the sequences collection with the collection name as _id.
+	 * A new counter starts after the largest numeric _id in the collection.
+	 */
+	Sequence sequence(DBCollection collection) {
+		return sequences.computeIfAbsent(collection.getName(), name -> {
+			DBCollection counters = db.getCollection("sequences");
+			DBObject select = new BasicDBObject("_id", name);
+			if (counters.findOne(select) == null)
+				seed(counters, select, collection);
+			return new Sequence(size -> {
+				DBObject counter = counters.findAndModify(select, null, null, false,
+						new BasicDBObject("$inc", new BasicDBObject("next", (long) size)), true, true);
+				return ((Number) counter.get("next")).longValue();
+			}, Sequence.BLOCK);
+		});
+	}
+
+	/*
+	 * Create the counter of a sequence at the largest numeric _id, the
+	 * collection may have ids that were set before it had a sequence. Only
+	 * the first of concurrent creators sets the counter.
+	 */
+	private void seed(DBCollection counters, DBObject select, DBCollection collection) {
+		long max = 0;
+		try (DBCursor cursor = collection.find(new BasicDBObject("_id", new BasicDBObject("$gt", 0)),
+				new BasicDBObject("_id", 1)).sort(new BasicDBObject("_id", -1)).limit(1)) {
+			if (cursor.hasNext())
+				max = ((Number) cursor.next().get("_id")).longValue();
+		}
+
+		try {
+			counters.update(select, new BasicDBObject("$setOnInsert", new BasicDBObject("next", max)), true, false);
+		} catch (DuplicateKeyException e) {
+			// another process created the counter
+		}
+	}
+
+	/**
+	 * An executor for queries that the stores run concurrently
+	 */
+	synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "aQute.open.store.mongo query " + config.db());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return executor;
+	}
+
 	public <T> MongoStoreImpl<T> getStore(Class<T> clazz, String name) throws Exception {
 		return new MongoStoreImpl<T>(this, clazz, db.getCollection(name));
 	}
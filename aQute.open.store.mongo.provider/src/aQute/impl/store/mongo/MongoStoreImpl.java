@@ -1,52 +1,98 @@
 package aQute.impl.store.mongo;
 
-import java.io.EOFException;
-import java.io.Reader;
-import java.io.StringReader;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.MongoException;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.mongodb.gridfs.GridFS;
 
 import aQute.lib.base64.Base64;
 import aQute.lib.hex.Hex;
 import aQute.open.store.api.Cursor;
+import aQute.open.store.api.LoadOptions;
+import aQute.open.store.api.LoadReport;
+import aQute.open.store.api.Searchable;
 import aQute.open.store.api.Store;
+import aQute.open.store.api.WriteMode;
 
 @SuppressWarnings("deprecation")
 public class MongoStoreImpl<T> implements Store<T> {
+	final static String			VERSION			= "_version";
+	final static int			RETRIES			= 10;
+	final static int			GET_ALL_CHUNK	= 250;
+	final static String[]		VARIANTS		= new String[128];
+
+	static {
+		for (char c = '\u00C0'; c < '\u0250'; c++) {
+			String folded = Search.fold(String.valueOf(c));
+			if (folded.length() == 1 && folded.charAt(0) >= 'a' && folded.charAt(0) <= 'z') {
+				char letter = folded.charAt(0);
+				VARIANTS[letter] = VARIANTS[letter] == null ? String.valueOf(c) : VARIANTS[letter] + c;
+			}
+		}
+	}
 	final static Pattern		BINARY_PATTERN	= Pattern
 			.compile("\\[h((?:[a-fA-f0-9][a-fA-f0-9])+)]|\\[b([a-zA-Z0-9+/]+={0,2})]");
-	final static Pattern		SIMPLE_EXPR		= Pattern.compile("([^=><~*]+)\\s*(=|<=|>=|>|<|~=)\\s*([^\\s]+)");
 	final MongoDBImpl			handler;
 	final Class<T>				type;
 	final DBCollection			collection;
 	GridFS						gridfs;
+	final MongoBlobsImpl		blobs;
 	final Field					_id;
+	final Field					version;
 	final Map<String, Field>	unique			= new HashMap<String, Field>();
 	final Field					fields[];
 	final MongoCodec			mcnv;
+	final boolean				scored;
+	final Set<String>			searchable;
+	volatile Boolean			textIndex;
+	final CompletableFuture<Boolean>	backfill;
+	final Map<String, PrefixIndex>	prefixes;
+	final Map<String, TrigramIndex>	trigrams;
+	volatile Tracker			tracker;
+	volatile WriteBehind		writeBehind;
+	volatile WriteMode			writeMode	= WriteMode.ACKNOWLEDGED;
+	final Map<Map<String, String>, QueryCompiler>	compilers	= new ConcurrentHashMap<>();
 
 	public MongoStoreImpl(MongoDBImpl handler, Class<T> type, DBCollection collection) throws Exception {
 		this.mcnv = new MongoCodec(this);
 		this.handler = handler;
 		this.collection = collection;
 		this.type = type;
+		this.blobs = new MongoBlobsImpl(this);
+		this.prefixes = handler == null ? new ConcurrentHashMap<>() : handler.prefixIndexes(collection);
+		this.trigrams = handler == null ? new ConcurrentHashMap<>() : handler.trigramIndexes(collection);
 		fields = type.getFields();
 		Field tmp = null;
 		for (Field f : fields) {
@@ -57,6 +103,11 @@ public class MongoStoreImpl<T> implements Store<T> {
 			throw new IllegalArgumentException("No _id field, required");
 
 		_id = tmp;
+		version = Stream.of(fields).filter(f -> f.getName().equals(VERSION)).findFirst().orElse(null);
+		scored = Stream.of(fields).anyMatch(f -> f.getName().equals(MongoCursorImpl.SCORE));
+		searchable = Stream.of(fields).filter(f -> f.isAnnotationPresent(Searchable.class)).map(Field::getName)
+				.collect(Collectors.toSet());
+		backfill = collection != null && !searchable.isEmpty() ? handler.backfill(this) : null;
 	}
 
 	public MongoStoreImpl<T> unique(String... fields) throws Exception {
@@ -71,40 +122,331 @@ public class MongoStoreImpl<T> implements Store<T> {
 		return this;
 	}
 
+	public MongoStoreImpl<T> textIndex(String... fields) throws Exception {
+		DBObject keys = new BasicDBObject();
+		for (String name : fields) {
+			type.getField(name);
+			keys.put(name, "text");
+		}
+		collection.createIndex(keys);
+		textIndex = true;
+		return this;
+	}
+
+	/**
+	 * Check if the collection has a text index. This is looked up once.
+	 */
+	boolean hasTextIndex() {
+		if (textIndex == null) {
+			boolean found = false;
+			for (DBObject index : collection.getIndexInfo()) {
+				DBObject key = (DBObject) index.get("key");
+				if (key != null && key.toMap().containsValue("text"))
+					found = true;
+			}
+			textIndex = found;
+		}
+		return textIndex;
+	}
+
+	/**
+	 * The prefix indexes are shared by the stores of a collection so that each
+	 * index is built and refreshed once.
+	 */
+	public MongoStoreImpl<T> prefixIndex(String... fields) throws Exception {
+		for (String name : fields) {
+			type.getField(name);
+			prefixes.computeIfAbsent(name, k -> {
+				PrefixIndex index = new PrefixIndex(this, k);
+				index.build();
+				handler.refresh(index::build, PrefixIndex.REFRESH, "prefix index " + collection.getName() + "." + k);
+				return index;
+			});
+		}
+		return this;
+	}
+
+	public MongoStoreImpl<T> trigramIndex() throws Exception {
+		trigrams.computeIfAbsent(TrigramIndex.KEYWORDS, k -> {
+			TrigramIndex index = new TrigramIndex(this, k);
+			index.build();
+			handler.refresh(index::build, TrigramIndex.REFRESH, "trigram index " + collection.getName());
+			return index;
+		});
+		return this;
+	}
+
+	public long reindexText(String job, Function<T, String> textOf, int parallelism) throws Exception {
+		if (parallelism < 1)
+			parallelism = Runtime.getRuntime().availableProcessors();
+		return new TextIndexer<T>(this, job, textOf).run(parallelism);
+	}
+
+	public List<String> complete(String field, String prefix, int limit) throws Exception {
+		PrefixIndex index = prefixes.get(field);
+		if (index != null)
+			return index.complete(prefix, limit);
+
+		List< ? > values = collection.distinct(field, range(field, prefix));
+		List<String> result = new ArrayList<>();
+		for (Object value : values)
+			if (value instanceof String && ((String) value).startsWith(prefix))
+				result.add((String) value);
+		Collections.sort(result);
+		return result.size() > limit ? result.subList(0, limit) : result;
+	}
+
+	/**
+	 * A query for the values of a field that start with the given prefix. The
+	 * upper bound is the first string after all strings with the prefix.
+	 */
+	static DBObject range(String field, String prefix) {
+		DBObject range = new BasicDBObject("$gte", prefix);
+		String after = after(prefix);
+		if (after != null)
+			range.put("$lt", after);
+		else
+			range.put("$type", 2);
+		return new BasicDBObject(field, range);
+	}
+
+	/**
+	 * Answer the smallest string that is larger than all strings that start
+	 * with the prefix, this is the prefix with its last code point incremented.
+	 * The strings are compared on their UTF-8 bytes, which orders them like
+	 * their code points, so the surrogates are skipped. Answer null if there
+	 * is no such string.
+	 */
+	static String after(String prefix) {
+		int end = prefix.length();
+		while (end > 0) {
+			int cp = prefix.codePointBefore(end);
+			end -= Character.charCount(cp);
+			if (cp < Character.MAX_CODE_POINT) {
+				int next = cp + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : cp + 1;
+				return new StringBuilder(prefix.substring(0, end)).appendCodePoint(next).toString();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keep the prefix indexes up to date with a written document
+	 */
+	void indexed(DBObject o) {
+		for (PrefixIndex index : prefixes.values())
+			index.add(o.get(index.field));
+
+		for (TrigramIndex index : trigrams.values())
+			index.add(o.get(index.field));
+	}
+
+	/**
+	 * Keep the prefix indexes up to date with a written field
+	 */
+	void indexed(String field, Object value) {
+		PrefixIndex index = prefixes.get(field);
+		if (index != null)
+			index.add(value);
+
+		TrigramIndex words = trigrams.get(field);
+		if (words != null)
+			words.add(value);
+	}
+
 	public T insert(T document) throws Exception {
+		return insert(document, writeMode);
+	}
+
+	public T insert(T document, WriteMode mode) throws Exception {
+		assignId(document);
+		DBObject o = (DBObject) mcnv.toMongo(document);
+		try {
+			if (mode == WriteMode.GROUP_COMMIT) {
+				if (!handler.groupCommit(collection).insert(o))
+					return null; // insert failed!
+			} else
+				error(collection.insert(o, concern(mode)));
+
+			indexed(o);
+			Tracker tracker = this.tracker;
+			if (tracker != null)
+				tracker.snapshot(document, o);
+			return document;
+		} catch (DuplicateKeyException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Set a new _id if the document has none
+	 */
+	void assignId(T document) throws Exception {
 		Object key = _id.get(document);
-		if (key == null) {
+		if (key == null || isNumericId() && ((Number) key).longValue() == 0) {
 			if (_id.getType() == byte[].class)
 				_id.set(document, ObjectId.get().toByteArray());
 			else if (_id.getType() == String.class)
 				_id.set(document, ObjectId.get().toString());
+			else if (isNumericId())
+				_id.set(document, sequence().next());
 			else
 				throw new IllegalArgumentException(
-						"Has no _id set and id cann not be created because it is not a byte[] or a String");
+						"Has no _id set and id cann not be created because it is not a byte[], a String, or a long");
 		}
-		DBObject o = (DBObject) mcnv.toMongo(document);
-		try {
-			WriteResult result = collection.insert(o);
-			CommandResult lastError = result.getLastError();
+	}
 
-			if (lastError != null) {
-				Integer code = (Integer) lastError.get("code");
-				if (code != null && code == 11000)
-					return null; // insert failed!
+	public LoadReport load(Stream<T> source, LoadOptions options) throws Exception {
+		return new Loader<T>(this, options == null ? new LoadOptions() : options).run(source);
+	}
 
-				error(result);
+	/**
+	 * Read the ids in chunks of $in queries, the chunks after the first are
+	 * read concurrently.
+	 */
+	public List<T> getAll(Collection< ? > ids) throws Exception {
+		List<Object> keys = new ArrayList<>(ids.size());
+		for (Object id : ids)
+			keys.add(MongoCursorImpl.converter.convert(_id.getGenericType(), id));
+
+		Map<Object, Object> unique = new LinkedHashMap<>();
+		for (Object key : keys)
+			unique.putIfAbsent(key(key), key);
+		List<Object> distinct = new ArrayList<>(unique.values());
+
+		List<CompletableFuture<List<T>>> chunks = new ArrayList<>();
+		for (int i = GET_ALL_CHUNK; i < distinct.size(); i += GET_ALL_CHUNK) {
+			List<Object> chunk = distinct.subList(i, Math.min(i + GET_ALL_CHUNK, distinct.size()));
+			chunks.add(CompletableFuture.supplyAsync(() -> getChunk(chunk), handler.executor()));
+		}
+
+		Map<Object, T> found = new HashMap<>();
+		for (T t : getChunk(distinct.subList(0, Math.min(GET_ALL_CHUNK, distinct.size()))))
+			found.put(key(_id.get(t)), t);
+		for (CompletableFuture<List<T>> chunk : chunks)
+			try {
+				for (T t : chunk.get())
+					found.put(key(_id.get(t)), t);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw cause instanceof Exception ? (Exception) cause : e;
 			}
-			return document;
-		} catch (MongoException.DuplicateKey e) {
-			return null;
+
+		List<T> result = new ArrayList<>(keys.size());
+		for (Object key : keys)
+			result.add(found.get(key(key)));
+		return result;
+	}
+
+	/*
+	 * Byte array ids are compared on content
+	 */
+	static Object key(Object id) {
+		return id instanceof byte[] ? ByteBuffer.wrap((byte[]) id) : id;
+	}
+
+	private List<T> getChunk(List<Object> chunk) {
+		if (chunk.isEmpty())
+			return Collections.emptyList();
+		try {
+			return new MongoCursorImpl<T>(this).in("_id", chunk).limit(chunk.size()).collect();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public MongoStoreImpl<T> writeMode(WriteMode mode) {
+		writeMode = mode == null ? WriteMode.ACKNOWLEDGED : mode;
+		return this;
+	}
+
+	/**
+	 * The write concern for a mode. Group commit only groups inserts, other
+	 * writes are journaled.
+	 */
+	static WriteConcern concern(WriteMode mode) {
+		switch (mode) {
+			case UNACKNOWLEDGED :
+				return WriteConcern.UNACKNOWLEDGED;
+			case JOURNALED :
+			case GROUP_COMMIT :
+				return WriteConcern.JOURNALED;
+			case MAJORITY :
+				return WriteConcern.MAJORITY;
+			default :
+				return WriteConcern.ACKNOWLEDGED;
 		}
 	}
 
+	/**
+	 * The write concern for a write that needs its result
+	 */
+	static WriteConcern acknowledged(WriteMode mode) {
+		return mode == WriteMode.UNACKNOWLEDGED ? WriteConcern.ACKNOWLEDGED : concern(mode);
+	}
+
+	public MongoStoreImpl<T> writeBehind(int size, long delay) throws Exception {
+		if (size > 0)
+			writeBehind = handler.writeBehind(collection, size, delay);
+		else {
+			barrier();
+			writeBehind = null;
+		}
+		return this;
+	}
+
+	public void flush() throws Exception {
+		barrier();
+	}
+
+	/*
+	 * Write the buffered updates before a write that cannot be buffered, so
+	 * the writes keep their order. The buffer is shared by the stores of the
+	 * collection, a store that does not buffer still waits for it.
+	 */
+	void barrier() {
+		WriteBehind buffer = handler == null ? null : handler.writeBehinds.get(collection.getName());
+		if (buffer != null)
+			buffer.flush();
+	}
+
+	public MongoStoreImpl<T> tracked(boolean on) {
+		tracker = on ? new Tracker(mcnv.fields(type)) : null;
+		return this;
+	}
+
 	public void update(T document, String... fields) throws Exception {
 		if (fields == null || fields.length == 0) {
-			DBObject o = (DBObject) mcnv.toMongo(document);
+			barrier();
 			DBObject filter = filter(document);
-			error(collection.update(filter, o));
+
+			Tracker tracker = this.tracker;
+			long[] snapshot = tracker == null ? null : tracker.get(document);
+			if (snapshot != null) {
+				DBObject o = (DBObject) mcnv.toMongo(document);
+				long[] hashes = tracker.hashes(o);
+				DBObject update = tracker.diff(snapshot, hashes, o);
+				if (update != null) {
+					error(collection.update(filter, versioned(update), false, false, concern(writeMode)));
+					DBObject set = (DBObject) update.get("$set");
+					if (set != null)
+						indexed(set);
+					incremented(document, o);
+				}
+				tracker.snapshot(document, o);
+				return;
+			}
+
+			DBObject o = (DBObject) mcnv.toMongo(document);
+			error(collection.update(filter, replacement(o), false, false, concern(writeMode)));
+			indexed(o);
+			incremented(document, o);
+			if (tracker != null)
+				tracker.snapshot(document, o);
 		} else {
 			MongoCursorImpl<T> cursor = find(document);
 
@@ -113,14 +455,30 @@ public class MongoStoreImpl<T> implements Store<T> {
 				Field f = c.getField(field);
 				cursor.set(field, f.get(document));
 			}
-			cursor.update();
+			if (cursor.update() > 0)
+				increment(document);
 		}
 	}
 
+	/**
+	 * An upsert only assigns the sequence ids. A document without a byte[] or
+	 * String _id is upserted on its unique fields, see {@link #filter(Object)}.
+	 */
 	public void upsert(T document) throws Exception {
+		if (isNumericId()) {
+			Object key = _id.get(document);
+			if (key == null || ((Number) key).longValue() == 0)
+				_id.set(document, sequence().next());
+		}
+		barrier();
 		DBObject o = (DBObject) mcnv.toMongo(document);
 		DBObject filter = filter(document);
-		error(collection.update(filter, o, true, false));
+		error(collection.update(filter, replacement(o), true, false, concern(writeMode)));
+		indexed(o);
+		incremented(document, o);
+		Tracker tracker = this.tracker;
+		if (tracker != null)
+			tracker.snapshot(document, o);
 	}
 
 	public MongoCursorImpl<T> all() throws Exception {
@@ -135,10 +493,44 @@ public class MongoStoreImpl<T> implements Store<T> {
 		return new MongoCursorImpl<T>(this, select);
 	}
 
+	/**
+	 * Answer the compiler for the given query templates. Compilers are cached
+	 * on the content of the templates.
+	 */
+	QueryCompiler compiler(Map<String, String> templates) throws Exception {
+		if (templates == null)
+			templates = Collections.emptyMap();
+
+		QueryCompiler compiler = compilers.get(templates);
+		if (compiler == null) {
+			if (compilers.size() > 100)
+				compilers.clear();
+
+			compiler = new QueryCompiler(this, templates);
+			compilers.put(new HashMap<>(templates), compiler);
+		}
+		return compiler;
+	}
+
+	public Predicate<T> predicate(String where, Object... args) throws Exception {
+		return new PredicateCompiler<T>(this).compile(parse(where, args));
+	}
+
+	/**
+	 * An acknowledged write already throws on errors. This only checks the
+	 * cached result so it never costs another round trip.
+	 */
 	void error(WriteResult result) {
-		if (result.getLastError() != null && result.getError() != null)
-			throw new RuntimeException(result.getError());
+		CommandResult last = result.getCachedLastError();
+		if (last != null && last.get("err") != null)
+			throw new RuntimeException(last.get("err").toString());
+	}
 
+	/**
+	 * The number of affected objects, 0 if the write was not acknowledged
+	 */
+	static int count(WriteResult result) {
+		return result.getLastConcern() != null && !result.getLastConcern().callGetLastError() ? 0 : result.getN();
 	}
 
 	/**
@@ -150,6 +542,13 @@ public class MongoStoreImpl<T> implements Store<T> {
 	 * @throws Exception
 	 */
 	DBObject filter(String ldap, Object... args) throws Exception {
+		return query(parse(ldap, args));
+	}
+
+	/**
+	 * Parse an LDAP expression after formatting it with the given arguments.
+	 */
+	Expr parse(String ldap, Object... args) throws Exception {
 
 		for (int i = 0; i < args.length; i++) {
 			if (args[i] instanceof byte[])
@@ -161,115 +560,213 @@ public class MongoStoreImpl<T> implements Store<T> {
 		if (!formatted.startsWith("("))
 			formatted = "(" + formatted + ")";
 
-		Reader r = new StringReader(formatted);
-		return expr(r, r.read());
+		return Expr.parse(formatted);
 	}
 
-	private DBObject expr(Reader ldap, int c) throws Exception {
-		while (Character.isWhitespace(c))
-			c = ldap.read();
-
-		assert c == '(';
+	/**
+	 * Translate a parsed expression to a Mongo query
+	 */
+	DBObject query(Expr expr) throws Exception {
 		DBObject query = new BasicDBObject();
 
-		do {
-			c = ldap.read();
-		} while (Character.isWhitespace(c));
-
-		switch (c) {
-		case '&': {
-			List<DBObject> exprs = exprs(ldap);
-			query.put("$and", exprs);
-			break;
-		}
-
-		case '|': {
-			List<DBObject> exprs = exprs(ldap);
-			query.put("$or", exprs);
-			break;
+		if (expr instanceof Expr.Composite) {
+			Expr.Composite composite = (Expr.Composite) expr;
+			List<DBObject> exprs = new ArrayList<DBObject>(composite.exprs.size());
+			for (Expr e : composite.exprs)
+				exprs.add(query(e));
+
+			switch (composite.op) {
+			case AND:
+				query.put("$and", exprs);
+				break;
+			case OR:
+				query.put("$or", exprs);
+				break;
+			case NOT:
+				query.put("$nor", exprs);
+				break;
+			}
+			return query;
 		}
 
-		case '!': {
-			List<DBObject> exprs = exprs(ldap);
-			query.put("$nor", exprs);
-			break;
-		}
+		Expr.Simple simple = (Expr.Simple) expr;
+		String key = simple.key;
+		String op = simple.op;
+		String value = simple.value;
+
+		if (op.equals("=")) {
+			if (".*".equals(value))
+				query.put(key, new BasicDBObject("$exists", true));
+			else if ("[]".equals(value)) {
+				query.put(key, Collections.EMPTY_LIST);
+			} else {
+				byte[] binary = binary(value);
+				if (binary != null)
+					query.put(key, binary);
+				else if (simple.regex) {
+					String prefix = searchable.contains(key) ? prefix(value) : null;
+					if (prefix != null)
+						query.putAll(range(key, prefix));
+					else
+						query.put(key, new BasicDBObject("$regex", "^" + value));
+					// TODO ensure valid regex for value
+				} else
+					query.put(key, fromBson(key, value));
+			}
+		} else if (op.equals(">"))
+			query.put(key, new BasicDBObject("$gt", fromBson(key, value)));
+		else if (op.equals(">="))
+			query.put(key, new BasicDBObject("$gte", fromBson(key, value)));
+		else if (op.equals("<"))
+			query.put(key, new BasicDBObject("$lt", fromBson(key, value)));
+		else if (op.equals("<="))
+			query.put(key, new BasicDBObject("$lte", fromBson(key, value)));
+		else if (op.equals("~=") && searchable.contains(key))
+			query.putAll(backfilled() ? approximate(key, value) : unshadowed(key, value));
+		else if (op.equals("~="))
+			query.put(key, new BasicDBObject("$regex", fromBson(key, value)).append("$options", "i"));
+		// TODO ensure valid regex for value
+		else
+			throw new IllegalArgumentException("Unknown operator " + op);
 
-		case -1:
-			throw new EOFException();
+		// TODO optimize by recognizing patterns that map to better
+		// operators
+		return query;
+	}
 
-		default:
-			while (Character.isWhitespace(c))
-				c = ldap.read();
+	/**
+	 * An approximate match on a searchable field is an anchored match on the
+	 * shadow field. Exact values and prefixes become index lookups.
+	 */
+	static DBObject approximate(String key, String value) {
+		String shadow = MongoCodec.SHADOW + key;
+		String folded = Search.fold(value);
+		if (literal(folded))
+			return new BasicDBObject(shadow, folded);
 
-			StringBuilder sb = new StringBuilder();
-			boolean regex = false;
+		String prefix = prefix(folded);
+		if (prefix != null)
+			return range(shadow, prefix);
 
-			while (true) {
-				if (c < 0)
-					throw new EOFException();
+		return new BasicDBObject(shadow, new BasicDBObject("$regex", "^(?:" + folded + ")$"));
+	}
 
-				if (c == '\\') {
-					c = ldap.read();
-					if (c < 0)
-						throw new EOFException();
-				} else if (c == '*') {
-					regex = true;
-					sb.append(".");
-				} else if (c == ')')
-					break;
+	/**
+	 * An approximate match for a collection where the shadow fields are not
+	 * yet backfilled. The documents without a shadow field are matched with a
+	 * case insensitive regex on the field itself where the letters also match
+	 * their variants with diacritical marks.
+	 */
+	static DBObject unshadowed(String key, String value) {
+		DBObject missing = new BasicDBObject(MongoCodec.SHADOW + key, new BasicDBObject("$exists", false)).append(key,
+				new BasicDBObject("$regex", "^(?:" + diacritics(Search.fold(value)) + ")$").append("$options", "i"));
+		return new BasicDBObject("$or", Arrays.asList(approximate(key, value), missing));
+	}
 
-				sb.append((char) c);
-				c = ldap.read();
-			}
-			Matcher m = SIMPLE_EXPR.matcher(sb);
-			if (!m.matches())
-				throw new IllegalArgumentException("Not a valid LDAP expression " + sb);
-
-			String key = m.group(1);
-			String op = m.group(2);
-			String value = m.group(3);
-
-			if (op.equals("=")) {
-				if (".*".equals(value))
-					query.put(key, new BasicDBObject("$exists", true));
-				else if ("[]".equals(value)) {
-					query.put(key, Collections.EMPTY_LIST);
-				} else {
-					Matcher matcher = BINARY_PATTERN.matcher(value);
-					if (matcher.matches()) {
-						if (matcher.group(2) != null) // [b matched
-							query.put(key, Base64.decodeBase64(matcher.group(2)));
-						else
-							// [h matched
-							query.put(key, Hex.toByteArray(matcher.group(1)));
-					} else if (regex) {
-						query.put(key, new BasicDBObject("$regex", "^" + value));
-						// TODO ensure valid regex for value
-					} else
-						query.put(key, fromBson(key, value));
-				}
-			} else if (op.equals(">"))
-				query.put(key, new BasicDBObject("$gt", fromBson(key, value)));
-			else if (op.equals(">="))
-				query.put(key, new BasicDBObject("$gte", fromBson(key, value)));
-			else if (op.equals("<"))
-				query.put(key, new BasicDBObject("$lt", fromBson(key, value)));
-			else if (op.equals("<="))
-				query.put(key, new BasicDBObject("$lte", fromBson(key, value)));
-			else if (op.equals("~="))
-				query.put(key, new BasicDBObject("$regex", fromBson(key, value)).append("$options", "i"));
-			// TODO ensure valid regex for value
+	/**
+	 * Make the letters of a folded regex also match the letters that fold to
+	 * them, precomposed or followed by combining marks. Escaped characters
+	 * are kept, in a character class the variants are added to the class.
+	 */
+	static String diacritics(String folded) {
+		StringBuilder sb = new StringBuilder();
+		boolean escape = false;
+		boolean inClass = false;
+		for (int i = 0; i < folded.length(); i++) {
+			char c = folded.charAt(i);
+			String variants = c < VARIANTS.length ? VARIANTS[c] : null;
+			if (escape) {
+				sb.append(c);
+				escape = false;
+			} else if (variants == null) {
+				sb.append(c);
+				if (c == '\\')
+					escape = true;
+				else if (c == '[')
+					inClass = true;
+				else if (c == ']')
+					inClass = false;
+			} else if (inClass)
+				sb.append(c).append(variants);
 			else
-				throw new IllegalArgumentException("Unknown operator " + op);
+				sb.append("(?:[").append(c).append(variants).append("]\\p{M}*)");
+		}
+		return sb.toString();
+	}
 
-			// TODO optimize by recognizing patterns that map to better
-			// operators
+	/**
+	 * Set the shadow fields of the documents that were stored before their
+	 * field was searchable. A document is only updated if the field has not
+	 * changed since it was read, otherwise the writer has set the shadow.
+	 */
+	void backfill() {
+		for (String name : searchable) {
+			String shadow = MongoCodec.SHADOW + name;
+			DBObject where = new BasicDBObject(name, new BasicDBObject("$exists", true)).append(shadow,
+					new BasicDBObject("$exists", false));
+
+			try (DBCursor cursor = collection.find(where, new BasicDBObject(name, 1))) {
+				BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+				int n = 0;
+				while (cursor.hasNext()) {
+					DBObject o = cursor.next();
+					Object value = o.get(name);
+					bulk.find(new BasicDBObject("_id", o.get("_id")).append(name, value))
+							.updateOne(new BasicDBObject("$set", new BasicDBObject(shadow, mcnv.shadow(value))));
+					if (++n % TextIndexer.BATCH_SIZE == 0) {
+						bulk.execute();
+						bulk = collection.initializeUnorderedBulkOperation();
+					}
+				}
+				if (n % TextIndexer.BATCH_SIZE != 0)
+					bulk.execute();
+			}
 		}
-		return query;
 	}
 
-	private Object fromBson(String key, String value) throws Exception {
+	/**
+	 * True if the shadow fields of the collection are known to be complete
+	 */
+	boolean backfilled() {
+		return backfill == null || backfill.getNow(false);
+	}
+
+	/**
+	 * Answer the literal prefix of a value that ends with a single wildcard or
+	 * null if it is not such a value.
+	 */
+	static String prefix(String value) {
+		if (!value.endsWith(".*"))
+			return null;
+
+		String prefix = value.substring(0, value.length() - 2);
+		return literal(prefix) ? prefix : null;
+	}
+
+	static boolean literal(String value) {
+		for (int i = 0; i < value.length(); i++)
+			if ("\\.[]{}()*+?^$|".indexOf(value.charAt(i)) >= 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Answer the bytes of a [h...] or [b...] binary literal or null if the
+	 * value is not a binary literal.
+	 */
+	static byte[] binary(String value) throws Exception {
+		Matcher matcher = BINARY_PATTERN.matcher(value);
+		if (!matcher.matches())
+			return null;
+
+		if (matcher.group(2) != null) // [b matched
+			return Base64.decodeBase64(matcher.group(2));
+		else
+			// [h matched
+			return Hex.toByteArray(matcher.group(1));
+	}
+
+	Object fromBson(String key, String value) throws Exception {
 		Object result = value;
 		if ("null".equals(result)) {
 			result = null;
@@ -308,22 +805,6 @@ public class MongoStoreImpl<T> implements Store<T> {
 			return result;
 	}
 
-	private List<DBObject> exprs(Reader ldap) throws Exception {
-		int c;
-		do {
-			c = ldap.read();
-		} while (Character.isWhitespace(c));
-
-		List<DBObject> list = new ArrayList<DBObject>();
-		while (c == '(') {
-			list.add(expr(ldap, c));
-
-			// read ( for another or ) for close
-			c = ldap.read();
-		}
-		return list;
-	}
-
 	BasicDBObject filter(T t) throws IllegalAccessException {
 		BasicDBObject or = new BasicDBObject();
 		Object id = _id.get(t);
@@ -352,7 +833,31 @@ public class MongoStoreImpl<T> implements Store<T> {
 		return new ObjectId().toByteArray();
 	}
 
-	GridFS getGridFs() {
+	public MongoBlobsImpl blobs() {
+		return blobs;
+	}
+
+	/**
+	 * A long _id is generated from a sequence, a primitive 0 means not set
+	 */
+	boolean isNumericId() {
+		return _id.getType() == long.class || _id.getType() == Long.class;
+	}
+
+	Sequence sequence() {
+		return handler.sequence(collection);
+	}
+
+	public MongoCounterImpl counter(String name, int stripes) throws Exception {
+		return counter(name, stripes, 0);
+	}
+
+	public MongoCounterImpl counter(String name, int stripes, long flush) throws Exception {
+		return handler.counter(collection.getDB().getCollection(collection.getName() + ".counters"), name, stripes,
+				flush);
+	}
+
+	synchronized GridFS getGridFs() {
 		if (gridfs == null) {
 			this.gridfs = new GridFS(collection.getDB(), collection.getName());
 
@@ -366,10 +871,144 @@ public class MongoStoreImpl<T> implements Store<T> {
 	}
 
 	/**
-	 * TODO implement optimistic locking
+	 * Select the document only if it still has the version of the given
+	 * document. Without a version field this is the same as find.
+	 */
+	public MongoCursorImpl<T> optimistic(T p) throws Exception {
+		MongoCursorImpl<T> cursor = find(p);
+		if (version != null) {
+			cursor.combine("$and", new BasicDBObject(VERSION, expected(version.get(p))));
+			cursor.optimistic = true;
+		}
+		return cursor;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T updateWithRetry(Object id, Function<T, T> fn) throws Exception {
+		if (version == null)
+			throw new IllegalArgumentException("No " + VERSION + " field, required for optimistic locking");
+
+		barrier();
+		Object key = mcnv.toMongo(id);
+		long backoff = 1;
+		for (int attempt = 0; attempt < RETRIES; attempt++) {
+			DBObject o = collection.findOne(new BasicDBObject("_id", key));
+			if (o == null)
+				return null;
+
+			T document = (T) mcnv.fromMongo(type, o);
+			Object current = version.get(document);
+			DBObject before = (DBObject) Transformer.detach(mcnv.toMongo(document));
+
+			T result = fn.apply(document);
+			if (result == null)
+				return document;
+
+			DBObject update = Transformer.diff(before, (DBObject) mcnv.toMongo(result));
+			if (update == null)
+				return result;
+
+			DBObject filter = new BasicDBObject("_id", key).append(VERSION, expected(current));
+			WriteResult r = collection.update(filter, versioned(update), false, false, acknowledged(writeMode));
+			error(r);
+			if (r.getN() > 0) {
+				DBObject set = (DBObject) update.get("$set");
+				if (set != null)
+					indexed(set);
+				version.set(result, current);
+				return increment(result);
+			}
+
+			Thread.sleep(1 + ThreadLocalRandom.current().nextLong(backoff));
+			backoff = Math.min(backoff * 2, 100);
+		}
+		throw new ConcurrentModificationException("Could not update " + id + " in " + RETRIES + " attempts");
+	}
+
+	/**
+	 * Add the increment of the version to an update. The version can only
+	 * change through the increment.
+	 */
+	DBObject versioned(DBObject update) {
+		if (version == null || update == null)
+			return update;
+
+		for (String op : new String[] {
+				"$set", "$unset"
+		}) {
+			DBObject fields = (DBObject) update.get(op);
+			if (fields != null) {
+				fields.removeField(VERSION);
+				if (fields.keySet().isEmpty())
+					update.removeField(op);
+			}
+		}
+
+		DBObject inc = (DBObject) update.get("$inc");
+		if (inc == null)
+			update.put("$inc", inc = new BasicDBObject());
+		if (!inc.containsField(VERSION))
+			inc.put(VERSION, 1);
+		return update;
+	}
+
+	/**
+	 * A full update of a versioned document without replacing it, so the
+	 * version is incremented on the server like with any other update. The
+	 * fields of the document are set, its null fields are unset. A document
+	 * without a version is replaced.
+	 */
+	DBObject replacement(DBObject o) {
+		if (version == null)
+			return o;
+
+		DBObject set = new BasicDBObject(o.toMap());
+		set.removeField("_id");
+
+		DBObject unset = new BasicDBObject();
+		for (Field f : mcnv.fields(type)) {
+			String name = f.getName();
+			if (!o.containsField(name) && !name.equals("_id") && !name.equals(MongoCursorImpl.SCORE))
+				unset.put(name, 1);
+			if (searchable.contains(name) && !o.containsField(MongoCodec.SHADOW + name))
+				unset.put(MongoCodec.SHADOW + name, 1);
+		}
+
+		DBObject update = new BasicDBObject("$set", set);
+		if (!unset.keySet().isEmpty())
+			update.put("$unset", unset);
+		return versioned(update);
+	}
+
+	/**
+	 * Increment the version of a document and its encoded form after the
+	 * document was written
+	 */
+	void incremented(T document, DBObject o) throws Exception {
+		if (version != null)
+			o.put(VERSION, mcnv.toMongo(version.get(increment(document))));
+	}
+
+	/**
+	 * Increment the version of a document after it was written
+	 */
+	T increment(T document) throws Exception {
+		if (version != null) {
+			Object current = version.get(document);
+			long next = current == null ? 1 : ((Number) current).longValue() + 1;
+			version.set(document, mcnv.converter.convert(version.getGenericType(), next));
+		}
+		return document;
+	}
+
+	/**
+	 * The selection on a version, documents that were stored before they had
+	 * a version have version 0
 	 */
-	public Cursor<T> optimistic(T p) throws Exception {
-		return find(p);
+	static Object expected(Object version) {
+		if (version == null || ((Number) version).longValue() == 0)
+			return new BasicDBObject("$in", Arrays.asList(0, null));
+		return version;
 	}
 
 	@Override
@@ -0,0 +1,52 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The token of a keyset page. The token is the URL safe Base64 of a BSON
+ * document with the values of the sort keys of the last object of a page, so
+ * the values keep their Mongo type.
+ */
+class PageToken {
+
+	static String encode(List< ? > values) {
+		byte[] bson = new BasicBSONEncoder().encode(new BasicDBObject("v", values));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bson);
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<Object> decode(String token, int keys) {
+		try {
+			BSONObject o = new BasicBSONDecoder().readObject(Base64.getUrlDecoder().decode(token));
+			List<Object> values = new ArrayList<>((List<Object>) o.get("v"));
+			if (values.size() == keys)
+				return values;
+		} catch (RuntimeException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid page token for this sort order " + token);
+	}
+
+	/*
+	 * The values of the keys in a document, dotted keys are paths
+	 */
+	static List<Object> values(DBObject o, List<String> keys) {
+		List<Object> values = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			Object value = o;
+			for (String segment : key.split("\\."))
+				value = value instanceof DBObject ? ((DBObject) value).get(segment) : null;
+			values.add(value);
+		}
+		return values;
+	}
+}
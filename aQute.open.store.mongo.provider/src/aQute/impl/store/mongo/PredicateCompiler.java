@@ -0,0 +1,460 @@
+package aQute.impl.store.mongo;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a parsed filter expression to a predicate that is evaluated in
+ * process. The semantics follow the Mongo query that
+ * {@link MongoStoreImpl#query(Expr)} creates for the same expression. Values
+ * are compared in their Mongo form, numbers compare numerically regardless of
+ * their type, values of different types never compare, and an operation on an
+ * array or collection matches when it matches any of its elements.
+ * <p>
+ * Field paths are resolved once during compilation. Top level primitive and
+ * String fields get a typed comparison that does not box or convert the value.
+ */
+class PredicateCompiler<T> {
+	final MongoStoreImpl<T> store;
+
+	/**
+	 * The values of a path that went through an array of documents. A match on
+	 * any of the values is a match.
+	 */
+	@SuppressWarnings("serial")
+	static class Fanout extends ArrayList<Object> {}
+
+	interface Accessor {
+		Object get(Object o) throws Exception;
+	}
+
+	PredicateCompiler(MongoStoreImpl<T> store) {
+		this.store = store;
+	}
+
+	@SuppressWarnings("unchecked")
+	Predicate<T> compile(Expr expr) throws Exception {
+		return (Predicate<T>) predicate(expr);
+	}
+
+	private Predicate<Object> predicate(Expr expr) throws Exception {
+		if (expr instanceof Expr.Composite) {
+			Expr.Composite composite = (Expr.Composite) expr;
+			@SuppressWarnings({"rawtypes", "unchecked"})
+			Predicate<Object>[] ps = new Predicate[composite.exprs.size()];
+			for (int i = 0; i < ps.length; i++)
+				ps[i] = predicate(composite.exprs.get(i));
+
+			switch (composite.op) {
+			case AND:
+				return o -> {
+					for (Predicate<Object> p : ps)
+						if (!p.test(o))
+							return false;
+					return true;
+				};
+
+			case OR:
+				return o -> {
+					for (Predicate<Object> p : ps)
+						if (p.test(o))
+							return true;
+					return false;
+				};
+
+			default:
+				return o -> {
+					for (Predicate<Object> p : ps)
+						if (p.test(o))
+							return false;
+					return true;
+				};
+			}
+		}
+		return simple((Expr.Simple) expr);
+	}
+
+	private Predicate<Object> simple(Expr.Simple simple) throws Exception {
+		String key = simple.key;
+		String op = simple.op;
+		String value = simple.value;
+
+		Field field = key.indexOf('.') < 0 ? field(store.type, key) : null;
+
+		if (op.equals("=")) {
+			if (".*".equals(value)) {
+				Accessor accessor = accessor(key);
+				return o -> exists(get(accessor, o));
+			}
+
+			if ("[]".equals(value))
+				return matcher(key, v -> v instanceof List && !(v instanceof Fanout) && ((List< ? >) v).isEmpty());
+
+			byte[] binary = MongoStoreImpl.binary(value);
+			if (binary != null)
+				return matcher(key, v -> v instanceof byte[] && Arrays.equals(binary, (byte[]) v));
+
+			if (simple.regex) {
+				Pattern pattern = Pattern.compile("^" + value);
+				if (field != null && field.getType() == String.class)
+					return o -> {
+						String s = (String) get(field, o);
+						return s != null && pattern.matcher(s).find();
+					};
+				return matcher(key, v -> v instanceof String && pattern.matcher((String) v).find());
+			}
+		} else if (op.equals("~=") && store.searchable.contains(key)) {
+			Predicate<String> test = approximate(Search.fold(value));
+			return matcher(key, v -> v instanceof String && test.test(Search.fold((String) v)));
+		} else if (op.equals("~=")) {
+			Pattern pattern = Pattern.compile(value, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+			return matcher(key, v -> v instanceof String && pattern.matcher((String) v).find());
+		}
+
+		IntPredicate result = result(op);
+		Object operand = store.fromBson(key, value);
+
+		if (field != null) {
+			Predicate<Object> typed = typed(field, operand, result);
+			if (typed != null)
+				return typed;
+		}
+
+		return matcher(key, v -> {
+			Integer r = compare(v, operand);
+			return r != null && result.test(r);
+		});
+	}
+
+	/*
+	 * The anchored match on the folded value of a searchable field, see
+	 * MongoStoreImpl.approximate
+	 */
+	private static Predicate<String> approximate(String folded) {
+		if (MongoStoreImpl.literal(folded))
+			return folded::equals;
+
+		String prefix = MongoStoreImpl.prefix(folded);
+		if (prefix != null)
+			return s -> s.startsWith(prefix);
+
+		Pattern pattern = Pattern.compile("^(?:" + folded + ")$");
+		return s -> pattern.matcher(s).find();
+	}
+
+	/*
+	 * Comparisons of top level fields that do not need any conversion of the
+	 * field value.
+	 */
+	private Predicate<Object> typed(Field field, Object operand, IntPredicate result) {
+		Class< ? > type = field.getType();
+
+		if (operand instanceof Number) {
+			Number n = (Number) operand;
+			if (type == int.class || type == long.class || type == short.class || type == byte.class) {
+				if (integral(n)) {
+					long c = n.longValue();
+					return o -> result.test(Long.compare(getLong(field, o), c));
+				}
+				double c = n.doubleValue();
+				return o -> result.test(compare(getLong(field, o), c));
+			}
+			if (type == double.class || type == float.class) {
+				double c = n.doubleValue();
+				return o -> result.test(compare(getDouble(field, o), c));
+			}
+		} else if (operand instanceof Boolean && type == boolean.class) {
+			int c = (Boolean) operand ? 1 : 0;
+			return o -> result.test(Integer.compare(getBoolean(field, o) ? 1 : 0, c));
+		} else if (operand instanceof String && type == String.class) {
+			String c = (String) operand;
+			return o -> {
+				String s = (String) get(field, o);
+				return s != null && result.test(s.compareTo(c));
+			};
+		}
+		return null;
+	}
+
+	/*
+	 * Create a predicate that gets the value for the key and then tests it with
+	 * array element semantics.
+	 */
+	private Predicate<Object> matcher(String key, Predicate<Object> test) throws Exception {
+		Accessor accessor = accessor(key);
+		return o -> matches(get(accessor, o), test);
+	}
+
+	static boolean matches(Object v, Predicate<Object> test) {
+		if (v instanceof Fanout) {
+			for (Object member : (Fanout) v)
+				if (matches(member, test))
+					return true;
+			return false;
+		}
+
+		if (test.test(v))
+			return true;
+
+		if (v instanceof List) {
+			for (Object member : (List< ? >) v)
+				if (test.test(member))
+					return true;
+		}
+		return false;
+	}
+
+	static boolean exists(Object v) {
+		if (v instanceof Fanout) {
+			for (Object member : (Fanout) v)
+				if (exists(member))
+					return true;
+			return false;
+		}
+		return v != null;
+	}
+
+	/*
+	 * Create an accessor for a dotted path. As long as the types on the path
+	 * are known, the fields are looked up once. Otherwise the path is resolved
+	 * against the runtime value.
+	 */
+	Accessor accessor(String key) throws Exception {
+		String[] segments = key.split("\\.");
+		Accessor accessor = null;
+		Class< ? > type = store.type;
+
+		for (String segment : segments) {
+			Accessor prev = accessor;
+			Field f = type == null ? null : field(type, segment);
+			if (f != null) {
+				type = document(f.getType()) ? f.getType() : null;
+				accessor = prev == null ? o -> normalize(f.get(o)) : o -> {
+					Object parent = prev.get(o);
+					return parent == null ? null : normalize(f.get(parent));
+				};
+			} else {
+				type = null;
+				accessor = prev == null ? o -> resolve(o, segment) : o -> resolve(prev.get(o), segment);
+			}
+		}
+		return accessor;
+	}
+
+	private Object resolve(Object o, String segment) throws Exception {
+		if (o == null)
+			return null;
+
+		if (o instanceof List) {
+			List< ? > list = (List< ? >) o;
+			if (!(o instanceof Fanout) && isIndex(segment)) {
+				int index = Integer.parseInt(segment);
+				return index < list.size() ? list.get(index) : null;
+			}
+
+			Fanout fanout = new Fanout();
+			for (Object member : list) {
+				Object v = resolve(member, segment);
+				if (v != null)
+					fanout.add(v);
+			}
+			return fanout;
+		}
+
+		if (o instanceof Map)
+			return normalize(((Map< ? , ? >) o).get(segment));
+
+		Field f = field(o.getClass(), segment);
+		if (f != null)
+			return normalize(f.get(o));
+
+		return null;
+	}
+
+	private static boolean isIndex(String segment) {
+		for (int i = 0; i < segment.length(); i++)
+			if (!Character.isDigit(segment.charAt(i)))
+				return false;
+		return !segment.isEmpty();
+	}
+
+	private Field field(Class< ? > type, String name) {
+		for (Field f : store.mcnv.fields(type))
+			if (f.getName().equals(name))
+				return f;
+		return null;
+	}
+
+	/*
+	 * Types that are stored as a Mongo document
+	 */
+	private boolean document(Class< ? > type) {
+		if (type.isPrimitive() || type.isArray() || type.isEnum() || type.isInterface())
+			return false;
+		if (Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type))
+			return false;
+		return store.mcnv.fields(type).length != 0;
+	}
+
+	/*
+	 * Bring a value in the form it has in Mongo, see MongoCodec.toMongo.
+	 * Collections and arrays become lists, documents stay as they are since
+	 * they are only traversed.
+	 */
+	Object normalize(Object o) {
+		if (o == null || o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof byte[]
+				|| o instanceof Map)
+			return o;
+
+		if (o instanceof Character)
+			return o.toString();
+
+		if (o instanceof char[])
+			return new String((char[]) o);
+
+		if (o instanceof File)
+			return null; // only the SHA is stored
+
+		if (o instanceof Iterable) {
+			List<Object> list = new ArrayList<>();
+			for (Object member : (Iterable< ? >) o)
+				list.add(normalize(member));
+			return list;
+		}
+
+		if (o.getClass().isArray()) {
+			int length = Array.getLength(o);
+			List<Object> list = new ArrayList<>(length);
+			for (int i = 0; i < length; i++)
+				list.add(normalize(Array.get(o, i)));
+			return list;
+		}
+
+		if (store.mcnv.fields(o.getClass()).length != 0)
+			return o;
+
+		return o.toString();
+	}
+
+	/**
+	 * Compare two values in their Mongo form. Values of a different type do
+	 * not compare, this is indicated with a null.
+	 */
+	static Integer compare(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b ? 0 : null;
+
+		if (a instanceof Number && b instanceof Number) {
+			Number na = (Number) a;
+			Number nb = (Number) b;
+			if (integral(na) && integral(nb))
+				return Long.compare(na.longValue(), nb.longValue());
+			return compare(na.doubleValue(), nb.doubleValue());
+		}
+
+		if (a instanceof String && b instanceof String)
+			return ((String) a).compareTo((String) b);
+
+		if (a instanceof Boolean && b instanceof Boolean)
+			return Boolean.compare((Boolean) a, (Boolean) b);
+
+		if (a instanceof byte[] && b instanceof byte[]) {
+			byte[] ba = (byte[]) a;
+			byte[] bb = (byte[]) b;
+			if (ba.length != bb.length)
+				return Integer.compare(ba.length, bb.length);
+			for (int i = 0; i < ba.length; i++) {
+				int r = Integer.compare(ba[i] & 0xFF, bb[i] & 0xFF);
+				if (r != 0)
+					return r;
+			}
+			return 0;
+		}
+		return null;
+	}
+
+	/*
+	 * Mongo considers NaN equal to itself and smaller than any other number
+	 */
+	static int compare(double a, double b) {
+		if (a < b)
+			return -1;
+		if (a > b)
+			return 1;
+		if (a == b)
+			return 0;
+		return Boolean.compare(!Double.isNaN(a), !Double.isNaN(b));
+	}
+
+	static boolean integral(Number n) {
+		return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+	}
+
+	static IntPredicate result(String op) {
+		switch (op) {
+		case "=":
+			return r -> r == 0;
+		case ">":
+			return r -> r > 0;
+		case ">=":
+			return r -> r >= 0;
+		case "<":
+			return r -> r < 0;
+		case "<=":
+			return r -> r <= 0;
+		default:
+			throw new IllegalArgumentException("Unknown operator " + op);
+		}
+	}
+
+	private static Object get(Accessor accessor, Object o) {
+		try {
+			return accessor.get(o);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Object get(Field f, Object o) {
+		try {
+			return f.get(o);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long getLong(Field f, Object o) {
+		try {
+			return f.getLong(o);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static double getDouble(Field f, Object o) {
+		try {
+			return f.getDouble(o);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean getBoolean(Field f, Object o) {
+		try {
+			return f.getBoolean(o);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * An in memory index of the distinct String values of a field, used for auto
+ * completion. The values are kept in a sorted array so a prefix lookup is a
+ * binary search followed by a scan of at most limit keys. Values that are
+ * written through the store are added to a small concurrent set until the next
+ * rebuild; a rebuild scans the collection and also drops the values that are
+ * no longer used.
+ */
+class PrefixIndex {
+	final static long					REFRESH	= 5 * 60 * 1000;
+	final static NavigableSet<String>	EMPTY	= Collections.emptyNavigableSet();
+
+	final MongoStoreImpl< ? >			store;
+	final String						field;
+	volatile String[]					keys	= new String[0];
+	volatile NavigableSet<String>		previous	= EMPTY;
+	volatile NavigableSet<String>		recent		= new ConcurrentSkipListSet<>();
+
+	PrefixIndex(MongoStoreImpl< ? > store, String field) {
+		this.store = store;
+		this.field = field;
+	}
+
+	/**
+	 * Scan the collection for the values of the field.
+	 */
+	void build() {
+		previous = recent;
+		recent = new ConcurrentSkipListSet<>();
+
+		Set<String> values = scan(store, field);
+		String[] sorted = values.toArray(new String[values.size()]);
+		Arrays.sort(sorted);
+		keys = sorted;
+		previous = EMPTY;
+	}
+
+	/**
+	 * Answer the distinct String values of a field in the collection
+	 */
+	static Set<String> scan(MongoStoreImpl< ? > store, String field) {
+		Set<String> values = new HashSet<>();
+		try (DBCursor cursor = store.collection.find(new BasicDBObject(), new BasicDBObject(field, 1))) {
+			cursor.batchSize(10000);
+			while (cursor.hasNext()) {
+				DBObject o = cursor.next();
+				collect(o.get(field), values);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Add the values of a field that is written.
+	 */
+	void add(Object value) {
+		collect(value, recent);
+	}
+
+	static void collect(Object value, Set<String> values) {
+		if (value instanceof String)
+			values.add((String) value);
+		else if (value instanceof Iterable) {
+			for (Object member : (Iterable< ? >) value)
+				collect(member, values);
+		} else if (value instanceof Object[]) {
+			for (Object member : (Object[]) value)
+				collect(member, values);
+		}
+	}
+
+	/**
+	 * Answer the sorted keys that start with the given prefix. Each source is
+	 * sorted so we take at most limit keys from each and merge them.
+	 */
+	List<String> complete(String prefix, int limit) {
+		String[] keys = this.keys;
+		int index = Arrays.binarySearch(keys, prefix);
+		if (index < 0)
+			index = -index - 1;
+
+		List<String> result = new ArrayList<>();
+		for (; index < keys.length && result.size() < limit && keys[index].startsWith(prefix); index++)
+			result.add(keys[index]);
+
+		NavigableSet<String> previous = this.previous;
+		NavigableSet<String> recent = this.recent;
+		if (previous.isEmpty() && recent.isEmpty())
+			return result;
+
+		TreeSet<String> merged = new TreeSet<>(result);
+		take(previous, prefix, limit, merged);
+		take(recent, prefix, limit, merged);
+
+		result.clear();
+		for (Iterator<String> i = merged.iterator(); i.hasNext() && result.size() < limit;)
+			result.add(i.next());
+		return result;
+	}
+
+	private static void take(NavigableSet<String> set, String prefix, int limit, Set<String> result) {
+		int n = 0;
+		for (String key : set.tailSet(prefix, true)) {
+			if (n++ >= limit || !key.startsWith(prefix))
+				return;
+			result.add(key);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package aQute.impl.store.mongo;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.stream.Stream;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Decodes documents into a view class. The public instance fields of the view
+ * are the projection. The constructor and the field setters are looked up
+ * once per view as method handles. A value that already has the exact type of
+ * its field, like a String or a boxed primitive, is set directly, other
+ * values go through the converter of the store. The projections are cached
+ * per store, see {@link MongoCodec#projection(Class)}.
+ */
+class Projection<P> {
+	final Class<P>									view;
+	final DBObject									select		= new BasicDBObject();
+	final MethodHandle								constructor;
+	final String[]									names;
+	final Type[]									types;
+	final Class< ? >[]								exact;
+	final MethodHandle[]							setters;
+
+	static <P> Projection<P> of(Class<P> view) {
+		try {
+			return new Projection<>(view);
+		} catch (IllegalAccessException | NoSuchMethodException e) {
+			throw new IllegalArgumentException("Not a valid view class " + view + ": " + e);
+		}
+	}
+
+	Projection(Class<P> view) throws IllegalAccessException, NoSuchMethodException {
+		this.view = view;
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		constructor = lookup.findConstructor(view, MethodType.methodType(void.class))
+				.asType(MethodType.methodType(Object.class));
+
+		Field[] fields = Stream.of(view.getFields())
+				.filter(f -> !Modifier.isStatic(f.getModifiers()) && !Modifier.isFinal(f.getModifiers()))
+				.toArray(Field[]::new);
+
+		names = new String[fields.length];
+		types = new Type[fields.length];
+		exact = new Class< ? >[fields.length];
+		setters = new MethodHandle[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			Field f = fields[i];
+			names[i] = f.getName();
+			types[i] = f.getGenericType();
+			exact[i] = exact(f.getType());
+			setters[i] = lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, Object.class));
+			select.put(f.getName(), 1);
+		}
+		if (!select.containsField("_id"))
+			select.put("_id", 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	P decode(DBObject o, MongoCodec codec) throws Throwable {
+		Object p = constructor.invokeExact();
+		for (int i = 0; i < names.length; i++) {
+			Object value = o.get(names[i]);
+			if (value == null)
+				continue;
+
+			if (value.getClass() != exact[i])
+				value = codec.converter.convert(types[i], value);
+			if (value != null)
+				setters[i].invokeExact(p, value);
+		}
+		return (P) p;
+	}
+
+	/*
+	 * The class of the values that can be set without conversion, or null
+	 * if every value is converted
+	 */
+	private static Class< ? > exact(Class< ? > type) {
+		if (type == String.class || type == byte[].class)
+			return type;
+		if (type == long.class || type == Long.class)
+			return Long.class;
+		if (type == int.class || type == Integer.class)
+			return Integer.class;
+		if (type == double.class || type == Double.class)
+			return Double.class;
+		if (type == boolean.class || type == Boolean.class)
+			return Boolean.class;
+		return null;
+	}
+}
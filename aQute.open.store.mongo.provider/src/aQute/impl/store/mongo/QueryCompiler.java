@@ -0,0 +1,175 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * Compiles the free text queries of {@link MongoCursorImpl#query(String, Map)}.
+ * The templates are parsed once into filter expressions with a placeholder for
+ * the word. A query is then tokenized in a single pass and the filter is
+ * assembled from the bound templates and the keywords without going through
+ * the LDAP parser again. The resulting Mongo queries are cached.
+ * <p>
+ * Instances are thread safe, the returned queries are shared and must not be
+ * modified.
+ */
+class QueryCompiler {
+	final static String				PLACEHOLDER	= "\uE000";
+	final static int				CACHE_SIZE	= 1000;
+
+	final MongoStoreImpl< ? >		store;
+	final Map<String, Expr>			templates	= new HashMap<>();
+	final Map<String, DBObject>		cache		= new LinkedHashMap<String, DBObject>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DBObject> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	QueryCompiler(MongoStoreImpl< ? > store, Map<String, String> templates) throws Exception {
+		this.store = store;
+		for (Map.Entry<String, String> e : templates.entrySet()) {
+			String template = String.format(e.getValue(), PLACEHOLDER).trim();
+			if (!template.startsWith("("))
+				template = "(" + template + ")";
+			this.templates.put(e.getKey(), Expr.parse(template));
+		}
+	}
+
+	/**
+	 * Answer the Mongo query for a free text query or null if the query does
+	 * not restrict the selection.
+	 */
+	DBObject compile(String q) throws Exception {
+		synchronized (cache) {
+			if (cache.containsKey(q))
+				return cache.get(q);
+		}
+
+		Expr expr = parse(q);
+		DBObject query = expr == null ? null : store.query(expr);
+
+		synchronized (cache) {
+			cache.put(q, query);
+		}
+		return query;
+	}
+
+	/**
+	 * Tokenize the query and create the filter expression. Tokens are separated
+	 * by white space. A token of the form {@code [!]key:value} refers to a
+	 * template, other tokens, also references to a key without a template,
+	 * are keywords, which are negated when they start with a '-'.
+	 */
+	Expr parse(String q) {
+		List<Expr> exprs = new ArrayList<>();
+		Search positive = new Search();
+		Search negative = new Search();
+
+		int l = q.length();
+		int i = 0;
+		while (i < l) {
+			while (i < l && Character.isWhitespace(q.charAt(i)))
+				i++;
+
+			int start = i;
+			int colon = -1;
+			boolean reference = true;
+
+			for (; i < l; i++) {
+				char c = q.charAt(i);
+				if (Character.isWhitespace(c))
+					break;
+
+				if (colon < 0) {
+					if (c == ':')
+						colon = i;
+					else if (!word(c) && !(c == '!' && i == start))
+						reference = false;
+				} else if (c == '(' || c == ')' || c == '=' || c == '>' || c == '<')
+					reference = false;
+			}
+			if (start == i)
+				break;
+
+			boolean negated = q.charAt(start) == '!';
+			int keyStart = negated ? start + 1 : start;
+
+			Expr template = reference && colon > keyStart && colon < i - 1
+					? templates.get(q.substring(keyStart, colon)) : null;
+			if (template != null) {
+				Expr bound = bind(template, q.substring(colon + 1, i));
+				exprs.add(negated ? new Expr.Composite(Expr.Op.NOT, Collections.singletonList(bound)) : bound);
+			} else {
+				String token = q.substring(start, i);
+				if (token.startsWith("-"))
+					negative.addAll(token);
+				else
+					positive.addAll(token);
+			}
+		}
+
+		for (String key : positive.set())
+			exprs.add(new Expr.Simple("keywords", "=", key, false));
+
+		for (String key : negative.set())
+			exprs.add(new Expr.Composite(Expr.Op.NOT,
+					Collections.singletonList(new Expr.Simple("keywords", "=", key, false))));
+
+		switch (exprs.size()) {
+		case 0:
+			return null;
+		case 1:
+			return exprs.get(0);
+		default:
+			return new Expr.Composite(Expr.Op.AND, exprs);
+		}
+	}
+
+	private static boolean word(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+	}
+
+	/*
+	 * Replace the placeholder in the template with the word. The word is
+	 * treated like the value of a filter, so a '*' is a wildcard and a '\'
+	 * escapes the next character.
+	 */
+	private Expr bind(Expr template, String word) {
+		if (template instanceof Expr.Composite) {
+			Expr.Composite composite = (Expr.Composite) template;
+			List<Expr> exprs = new ArrayList<>(composite.exprs.size());
+			for (Expr e : composite.exprs)
+				exprs.add(bind(e, word));
+			return new Expr.Composite(composite.op, exprs);
+		}
+
+		Expr.Simple simple = (Expr.Simple) template;
+		if (!simple.key.contains(PLACEHOLDER) && !simple.value.contains(PLACEHOLDER))
+			return simple;
+
+		StringBuilder sb = new StringBuilder(word.length() + 8);
+		boolean regex = false;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (c == '\\' && i + 1 < word.length())
+				c = word.charAt(++i);
+			else if (c == '*') {
+				regex = true;
+				sb.append('.');
+			}
+			sb.append(c);
+		}
+		String value = sb.toString();
+		return new Expr.Simple(simple.key.replace(PLACEHOLDER, value), simple.op,
+				simple.value.replace(PLACEHOLDER, value), simple.regex || regex);
+	}
+}
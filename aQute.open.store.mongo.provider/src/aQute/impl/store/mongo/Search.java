@@ -1,14 +1,72 @@
 package aQute.impl.store.mongo;
 
-import java.text.*;
-import java.util.*;
-import java.util.regex.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.Normalizer;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Tokenizes text into lower case keywords without diacritics. Common words are
+ * skipped.
+ * <p>
+ * The tokenizer is tuned for bulk indexing. Tokens are lower cased into a
+ * reused buffer and checked against a precomputed stop word table without
+ * creating a String. Tokens that are pure ASCII do not need normalization,
+ * only other tokens are decomposed to remove the diacritical marks. A Search
+ * is not thread safe.
+ */
 public class Search {
-	private static final Pattern	SKIPWORDS	= Pattern
-														.compile("am|are|is|was|were|be|been|have|has|had|can|could|will|in|the|of|to|end|is|it|you|that|this|he|for|on|with|as|his|they|at|one|from|or|by|not|but|some|what|there|we|out|other|all|your|when|up|use|how|an|if|do|then|so|and|very|org|com|net|java");
-	static Pattern					pattern		= Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
-	final Set<String>				set;
+	private static final String[]	SKIPWORDS	= {
+			"am", "are", "is", "was", "were", "be", "been", "have", "has", "had", "can", "could", "will", "in", "the",
+			"of", "to", "end", "it", "you", "that", "this", "he", "for", "on", "with", "as", "his", "they", "at",
+			"one", "from", "or", "by", "not", "but", "some", "what", "there", "we", "out", "other", "all", "your",
+			"when", "up", "use", "how", "an", "if", "do", "then", "so", "and", "very", "org", "com", "net", "java"
+	};
+	private static final Set<String>	SKIPSET		= new HashSet<>();
+	private static final char[][]		STOPWORDS	= new char[256][];
+
+	static {
+		for (String word : SKIPWORDS) {
+			SKIPSET.add(word);
+			int slot = word.hashCode() & (STOPWORDS.length - 1);
+			while (STOPWORDS[slot] != null)
+				slot = (slot + 1) & (STOPWORDS.length - 1);
+			STOPWORDS[slot] = word.toCharArray();
+		}
+	}
+
+	final Set<String>	set;
+	private char[]		buffer	= new char[32];
+	private char[]		raw		= new char[32];
+	private final Chars	chars	= new Chars();
+
+	/*
+	 * A reusable view on the raw token buffer
+	 */
+	private class Chars implements CharSequence {
+		int length;
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return raw[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(raw, start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(raw, 0, length);
+		}
+	}
 
 	public Search(Set<String> set) {
 		this.set = set;
@@ -22,6 +80,10 @@ public class Search {
 		return set;
 	}
 
+	/**
+	 * Add all the words in the description. Words are sequences of letters and
+	 * digits of at least 2 characters.
+	 */
 	public void addAll(String description) {
 		if (description == null)
 			return;
@@ -30,42 +92,169 @@ public class Search {
 		int start = 0;
 		while (start < l) {
 			for (; start < l; start++) {
-				char c = description.charAt(start);
-				if (Character.isLetter(c) || Character.isDigit(c))
+				if (Character.isLetterOrDigit(description.charAt(start)))
 					break;
 			}
 			int end = start;
 			for (; end < l; end++) {
-				char c = description.charAt(end);
-				if (!(Character.isLetter(c) || Character.isDigit(c)))
+				if (!Character.isLetterOrDigit(description.charAt(end)))
 					break;
 			}
 			if (end - start > 1)
-				add(description.substring(start, end));
+				add(description, start, end);
 			start = end;
 		}
 	}
 
 	/**
-	 * Terribly inefficient TODO
-	 * 
+	 * Add all the words read from the reader. This has the same result as
+	 * {@link #addAll(String)} but the text is never held in memory as a whole.
+	 * The reader is not closed.
+	 */
+	public void addAll(Reader description) throws IOException {
+		if (description == null)
+			return;
+
+		char[] block = new char[4096];
+		int length = 0;
+		int n;
+		while ((n = description.read(block)) >= 0) {
+			for (int i = 0; i < n; i++) {
+				char c = block[i];
+				if (Character.isLetterOrDigit(c)) {
+					if (length == raw.length)
+						raw = grow(raw);
+					raw[length++] = c;
+				} else {
+					if (length > 1)
+						addRaw(length);
+					length = 0;
+				}
+			}
+		}
+		if (length > 1)
+			addRaw(length);
+	}
+
+	/**
+	 * Add a single word.
+	 *
 	 * @param str
 	 */
 	public void add(String str) {
 		if (str == null)
 			return;
 
-		str = str.trim();
-		if (str.isEmpty())
+		add(str, 0, str.length());
+	}
+
+	private void addRaw(int length) {
+		chars.length = length;
+		add(chars, 0, length);
+	}
+
+	private void add(CharSequence s, int start, int end) {
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+
+		int length = end - start;
+		if (length == 0)
+			return;
+
+		if (buffer.length < length)
+			buffer = new char[Math.max(length, buffer.length * 2)];
+
+		boolean ascii = true;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(start + i);
+			if (c >= 0x80) {
+				ascii = false;
+				break;
+			}
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			buffer[i] = c;
+		}
+
+		if (ascii) {
+			if (!isStopword(buffer, length))
+				set.add(new String(buffer, 0, length));
 			return;
+		}
 
-		str = str.toLowerCase();
-		if (SKIPWORDS.matcher(str).matches())
+		String str = s.subSequence(start, end).toString().toLowerCase();
+		if (SKIPSET.contains(str))
 			return;
 
-		String s = Normalizer.normalize(str, Normalizer.Form.NFD);
-		s = pattern.matcher(s).replaceAll("");
-		set.add(s);
+		set.add(stripDiacritics(Normalizer.normalize(str, Normalizer.Form.NFD)));
+	}
+
+	/*
+	 * Remove the characters from the Combining Diacritical Marks block
+	 */
+	private String stripDiacritics(String s) {
+		int l = s.length();
+		if (buffer.length < l)
+			buffer = new char[l];
+
+		int n = 0;
+		for (int i = 0; i < l; i++) {
+			char c = s.charAt(i);
+			if (c < '\u0300' || c > '\u036F')
+				buffer[n++] = c;
+		}
+		return n == l ? s : new String(buffer, 0, n);
+	}
+
+	/**
+	 * Answer the lower case form of a string without diacritical marks, this
+	 * is the same form as the keywords.
+	 */
+	static String fold(String s) {
+		String lower = s.toLowerCase();
+		for (int i = 0; i < lower.length(); i++) {
+			if (lower.charAt(i) >= 0x80) {
+				String nfd = Normalizer.normalize(lower, Normalizer.Form.NFD);
+				StringBuilder sb = new StringBuilder(nfd.length());
+				for (int j = 0; j < nfd.length(); j++) {
+					char c = nfd.charAt(j);
+					if (c < '\u0300' || c > '\u036F')
+						sb.append(c);
+				}
+				return sb.toString();
+			}
+		}
+		return lower;
+	}
+
+	private static boolean isStopword(char[] word, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + word[i];
+
+		int slot = h & (STOPWORDS.length - 1);
+		char[] candidate;
+		while ((candidate = STOPWORDS[slot]) != null) {
+			if (candidate.length == length && equals(candidate, word, length))
+				return true;
+			slot = (slot + 1) & (STOPWORDS.length - 1);
+		}
+		return false;
+	}
+
+	private static boolean equals(char[] a, char[] b, int length) {
+		for (int i = 0; i < length; i++)
+			if (a[i] != b[i])
+				return false;
+		return true;
+	}
+
+	private static char[] grow(char[] chars) {
+		char[] tmp = new char[chars.length * 2];
+		System.arraycopy(chars, 0, tmp, 0, chars.length);
+		return tmp;
 	}
 
 	public void getEncodedKeywords(StringBuilder sb) {
@@ -0,0 +1,44 @@
+package aQute.impl.store.mongo;
+
+/**
+ * A hi/lo generator of long ids. A block of ids is reserved with a single
+ * atomic increment of a shared counter, the ids of the block are then handed
+ * out locally. Other generators on the same counter, also in other processes,
+ * reserve other blocks so the ids are unique. The ids start at 1, 0 is never
+ * handed out so it can mean that a primitive id is not set.
+ */
+class Sequence {
+	final static int	BLOCK	= 1000;
+
+	final Blocks		blocks;
+	final int			block;
+	long				next;
+	long				high;
+
+	interface Blocks {
+		/**
+		 * Add the size to the counter and answer the new value of the counter
+		 */
+		long reserve(int size) throws Exception;
+	}
+
+	Sequence(Blocks blocks, int block) {
+		if (block < 1)
+			throw new IllegalArgumentException("Block size must be positive " + block);
+		this.blocks = blocks;
+		this.block = block;
+	}
+
+	/**
+	 * Answer the next id, reserves a new block when the current block is
+	 * exhausted.
+	 */
+	synchronized long next() throws Exception {
+		if (next >= high) {
+			long h = blocks.reserve(block);
+			next = h - block;
+			high = h;
+		}
+		return ++next;
+	}
+}
@@ -0,0 +1,128 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Rebuilds the keywords of all documents in a store. The collection is scanned
+ * in ascending _id order and cut in batches, each batch is a range of _ids.
+ * The batches are decoded, tokenized and written back with a single bulk
+ * operation on a fork join pool. The number of batches in flight is limited
+ * so the scan cannot run ahead of the writes.
+ * <p>
+ * After a batch and all its predecessors are written, the last _id is saved
+ * in the checkpoint collection together with the job. If a reindex fails or
+ * the process dies, the next reindex of the store with the same job continues
+ * after this _id. A checkpoint of another job is ignored since its keywords
+ * were made with other rules. The checkpoint is removed when the reindex is
+ * complete.
+ */
+class TextIndexer<T> {
+	final static int			BATCH_SIZE	= 1000;
+	final static String			CHECKPOINT	= "reindexText";
+
+	final MongoStoreImpl<T>		store;
+	final String				job;
+	final Function<T, String>	textOf;
+	final DBCollection			checkpoints;
+
+	TextIndexer(MongoStoreImpl<T> store, String job, Function<T, String> textOf) {
+		this.store = store;
+		this.job = job;
+		this.textOf = textOf;
+		this.checkpoints = store.collection.getDB().getCollection(store.collection.getName() + ".checkpoints");
+	}
+
+	/**
+	 * Reindex the documents after the checkpoint, answer the number of
+	 * documents that were indexed.
+	 */
+	long run(int parallelism) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		Deque<ForkJoinTask<Object>> inflight = new ArrayDeque<>();
+		long count = 0;
+		try {
+			DBObject where = new BasicDBObject();
+			DBObject checkpoint = checkpoints.findOne(new BasicDBObject("_id", CHECKPOINT));
+			if (checkpoint != null && job.equals(checkpoint.get("job")))
+				where.put("_id", new BasicDBObject("$gt", checkpoint.get("lastId")));
+
+			try (DBCursor cursor = store.collection.find(where).sort(new BasicDBObject("_id", 1))) {
+				cursor.batchSize(BATCH_SIZE);
+
+				List<DBObject> batch = new ArrayList<>(BATCH_SIZE);
+				while (cursor.hasNext()) {
+					batch.add(cursor.next());
+					if (batch.size() == BATCH_SIZE) {
+						count += batch.size();
+						submit(pool, inflight, batch, parallelism * 2);
+						batch = new ArrayList<>(BATCH_SIZE);
+					}
+				}
+				if (!batch.isEmpty()) {
+					count += batch.size();
+					submit(pool, inflight, batch, parallelism * 2);
+				}
+			}
+
+			while (!inflight.isEmpty())
+				checkpoint(inflight.removeFirst().join());
+
+			checkpoints.remove(new BasicDBObject("_id", CHECKPOINT));
+			return count;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Submit a batch and wait until at most max batches are in flight. The
+	 * checkpoint only moves over batches that are done in order.
+	 */
+	private void submit(ForkJoinPool pool, Deque<ForkJoinTask<Object>> inflight, List<DBObject> batch, int max) {
+		inflight.addLast(pool.submit(() -> write(batch)));
+
+		while (!inflight.isEmpty() && (inflight.size() > max || inflight.peekFirst().isDone()))
+			checkpoint(inflight.removeFirst().join());
+	}
+
+	private void checkpoint(Object lastId) {
+		checkpoints.save(new BasicDBObject("_id", CHECKPOINT).append("job", job).append("lastId", lastId));
+	}
+
+	/*
+	 * Tokenize the texts of a batch and set the keywords, answer the last _id
+	 */
+	@SuppressWarnings("unchecked")
+	private Object write(List<DBObject> batch) throws Exception {
+		BulkWriteOperation bulk = store.collection.initializeUnorderedBulkOperation();
+		Search search = new Search();
+		Object id = null;
+
+		for (DBObject o : batch) {
+			id = o.get("_id");
+			T document = (T) store.mcnv.fromMongo(store.type, o);
+
+			search.set().clear();
+			search.addAll(textOf.apply(document));
+			List<String> keywords = new ArrayList<>(search.set());
+
+			bulk.find(new BasicDBObject("_id", id))
+					.updateOne(store.versioned(new BasicDBObject("$set", new BasicDBObject("keywords", keywords))));
+			store.indexed("keywords", keywords);
+		}
+		bulk.execute();
+		return id;
+	}
+}
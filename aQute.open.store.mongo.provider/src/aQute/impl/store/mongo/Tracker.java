@@ -0,0 +1,209 @@
+package aQute.impl.store.mongo;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Remembers a snapshot of the documents that were read or written through a
+ * tracked store. The snapshot is a 64 bit hash of the Mongo form of each top
+ * level field. When a document is updated, only the fields with a different
+ * hash are written.
+ * <p>
+ * The snapshots are held in a weak identity map, they do not keep the
+ * documents alive and a document that overrides equals is still tracked as
+ * the object that was read.
+ */
+class Tracker {
+	final static long						ABSENT	= 0;
+
+	final Field[]							fields;
+	final Map<Key, long[]>					snapshots	= new HashMap<>();
+	final ReferenceQueue<Object>			queue		= new ReferenceQueue<>();
+
+	/*
+	 * A weak reference that is equal to the references to the same object
+	 */
+	static class Key extends WeakReference<Object> {
+		final int hash;
+
+		Key(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Object referent = get();
+			return referent != null && referent == ((Key) o).get();
+		}
+	}
+
+	Tracker(Field[] fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * Remember the hashes of the fields of a document in its Mongo form
+	 */
+	void snapshot(Object document, DBObject o) {
+		put(document, hashes(o));
+	}
+
+	synchronized void put(Object document, long[] hashes) {
+		expunge();
+		snapshots.put(new Key(document, queue), hashes);
+	}
+
+	/**
+	 * Answer the snapshot of a document or null if it is not tracked
+	 */
+	synchronized long[] get(Object document) {
+		expunge();
+		return snapshots.get(new Key(document, null));
+	}
+
+	/**
+	 * Answer the hashes of the fields in the Mongo form of a document
+	 */
+	long[] hashes(DBObject o) {
+		long[] hashes = new long[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			String name = fields[i].getName();
+			hashes[i] = o.containsField(name) ? hash(o.get(name)) : ABSENT;
+		}
+		return hashes;
+	}
+
+	/**
+	 * Calculate the update for the fields that changed since the snapshot or
+	 * null if nothing changed. The shadow fields follow their field.
+	 */
+	DBObject diff(long[] snapshot, long[] hashes, DBObject o) {
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+
+		for (int i = 0; i < fields.length; i++) {
+			String name = fields[i].getName();
+			if (snapshot[i] == hashes[i] || name.equals("_id"))
+				continue;
+
+			String shadow = MongoCodec.SHADOW + name;
+			if (o.containsField(name)) {
+				set.put(name, o.get(name));
+				if (o.containsField(shadow))
+					set.put(shadow, o.get(shadow));
+			} else {
+				unset.put(name, 1);
+				unset.put(shadow, 1);
+			}
+		}
+
+		if (set.isEmpty() && unset.isEmpty())
+			return null;
+
+		BasicDBObject update = new BasicDBObject();
+		if (!set.isEmpty())
+			update.put("$set", set);
+		if (!unset.isEmpty())
+			update.put("$unset", unset);
+		return update;
+	}
+
+	private void expunge() {
+		Reference< ? > ref;
+		while ((ref = queue.poll()) != null)
+			snapshots.remove(ref);
+	}
+
+	/**
+	 * A 64 bit hash of a value in its Mongo form. Integral numbers hash the
+	 * same regardless of their type. The hash is never {@link #ABSENT}.
+	 */
+	static long hash(Object o) {
+		long h = hash(0xCBF29CE484222325L, o);
+		return h == ABSENT ? 1 : h;
+	}
+
+	private static long hash(long h, Object o) {
+		if (o == null)
+			return mix(h, 1);
+
+		if (o instanceof String) {
+			String s = (String) o;
+			h = mix(h, 2);
+			for (int i = 0; i < s.length(); i++)
+				h = mix(h, s.charAt(i));
+			return mix(h, s.length());
+		}
+
+		if (o instanceof Double || o instanceof Float) {
+			double d = ((Number) o).doubleValue();
+			if (d == (long) d)
+				return mix(mix(h, 3), (long) d);
+			return mix(mix(h, 4), Double.doubleToLongBits(d));
+		}
+
+		if (o instanceof Number)
+			return mix(mix(h, 3), ((Number) o).longValue());
+
+		if (o instanceof Boolean)
+			return mix(h, (Boolean) o ? 5 : 6);
+
+		if (o instanceof byte[]) {
+			byte[] bytes = (byte[]) o;
+			h = mix(h, 7);
+			for (byte b : bytes)
+				h = mix(h, b);
+			return mix(h, bytes.length);
+		}
+
+		if (o.getClass().isArray() || o instanceof List) {
+			h = mix(h, 8);
+			int length;
+			if (o instanceof List) {
+				List< ? > list = (List< ? >) o;
+				length = list.size();
+				for (Object member : list)
+					h = hash(h, member);
+			} else {
+				length = Array.getLength(o);
+				for (int i = 0; i < length; i++)
+					h = hash(h, Array.get(o, i));
+			}
+			return mix(h, length);
+		}
+
+		if (o instanceof DBObject) {
+			DBObject dbo = (DBObject) o;
+			h = mix(h, 9);
+			for (String key : dbo.keySet())
+				h = hash(hash(h, key), dbo.get(key));
+			return mix(h, dbo.keySet().size());
+		}
+
+		return hash(mix(h, 10), o.toString());
+	}
+
+	private static long mix(long h, long v) {
+		h = (h ^ v) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+}
@@ -0,0 +1,214 @@
+package aQute.impl.store.mongo;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import aQute.open.store.api.TransformReport;
+
+/**
+ * Transforms the documents of a selection in batches. Each document is
+ * decoded once and encoded before and after the transformation, only the top
+ * level fields that differ are written with $set and $unset. The updates of a
+ * batch are written with a single unordered bulk operation.
+ * <p>
+ * A guarded update also selects on the version of the document, or, if the
+ * type has no version, on the original values of the changed fields. So it
+ * does not match when the document was changed in the mean time.
+ * The bulk result only counts the matches, the difference with the number of
+ * updates is the number of conflicts.
+ */
+class Transformer<T> {
+	final MongoStoreImpl<T>	store;
+	final DBObject			where;
+	final Function<T, T>	fn;
+	final boolean			guarded;
+
+	Transformer(MongoStoreImpl<T> store, DBObject where, Function<T, T> fn, boolean guarded) {
+		this.store = store;
+		this.where = where;
+		this.fn = fn;
+		this.guarded = guarded;
+	}
+
+	@SuppressWarnings("unchecked")
+	TransformReport run(int batchSize) throws Exception {
+		TransformReport report = new TransformReport();
+		Object lastId = null;
+
+		while (true) {
+			DBObject query = where == null ? new BasicDBObject() : where;
+			if (lastId != null)
+				query = new BasicDBObject("$and",
+						Arrays.asList(query, new BasicDBObject("_id", new BasicDBObject("$gt", lastId))));
+
+			List<DBObject> batch = new ArrayList<>(batchSize);
+			try (DBCursor cursor = store.collection.find(query).sort(new BasicDBObject("_id", 1)).limit(batchSize)) {
+				while (cursor.hasNext())
+					batch.add(cursor.next());
+			}
+			if (batch.isEmpty())
+				return report;
+
+			BulkWriteOperation bulk = store.collection.initializeUnorderedBulkOperation();
+			int updates = 0;
+			for (DBObject o : batch) {
+				lastId = o.get("_id");
+				T document = (T) store.mcnv.fromMongo(store.type, o);
+
+				// encode before the function can change the document
+				DBObject before = (DBObject) detach(store.mcnv.toMongo(document));
+				T result = fn.apply(document);
+				DBObject update = result == null ? null
+						: diff(before, (DBObject) store.mcnv.toMongo(result));
+				if (update == null) {
+					report.unchanged++;
+					continue;
+				}
+
+				DBObject filter = new BasicDBObject("_id", lastId);
+				if (guarded && store.version != null)
+					filter.put(MongoStoreImpl.VERSION, MongoStoreImpl.expected(before.get(MongoStoreImpl.VERSION)));
+				else if (guarded)
+					guard(filter, before, update);
+
+				bulk.find(filter).updateOne(store.versioned(update));
+				indexed(update);
+				updates++;
+			}
+
+			if (updates > 0) {
+				BulkWriteResult result = bulk.execute();
+				report.modified += result.getMatchedCount();
+				report.conflicted += updates - result.getMatchedCount();
+			}
+
+			if (batch.size() < batchSize)
+				return report;
+		}
+	}
+
+	/**
+	 * Calculate the update that changes the before document into the after
+	 * document or null if they are the same.
+	 */
+	static DBObject diff(DBObject before, DBObject after) {
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+
+		for (String key : after.keySet()) {
+			if (key.equals("_id"))
+				continue;
+			Object value = after.get(key);
+			if (!before.containsField(key) || !same(before.get(key), value))
+				set.put(key, value);
+		}
+		for (String key : before.keySet()) {
+			if (!after.containsField(key))
+				unset.put(key, 1);
+		}
+
+		if (set.isEmpty() && unset.isEmpty())
+			return null;
+
+		BasicDBObject update = new BasicDBObject();
+		if (!set.isEmpty())
+			update.put("$set", set);
+		if (!unset.isEmpty())
+			update.put("$unset", unset);
+		return update;
+	}
+
+	/**
+	 * Deep equality of Mongo values, arrays of primitives are compared on
+	 * content.
+	 */
+	static boolean same(Object a, Object b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+
+		if (a.getClass().isArray() && b.getClass().isArray())
+			return Objects.deepEquals(a, b);
+
+		if (a instanceof List && b instanceof List) {
+			List< ? > la = (List< ? >) a;
+			List< ? > lb = (List< ? >) b;
+			if (la.size() != lb.size())
+				return false;
+			for (int i = 0; i < la.size(); i++)
+				if (!same(la.get(i), lb.get(i)))
+					return false;
+			return true;
+		}
+
+		if (a instanceof DBObject && b instanceof DBObject) {
+			DBObject da = (DBObject) a;
+			DBObject db = (DBObject) b;
+			Set<String> keys = new HashSet<>(da.keySet());
+			if (!keys.equals(db.keySet()))
+				return false;
+			for (String key : keys)
+				if (!same(da.get(key), db.get(key)))
+					return false;
+			return true;
+		}
+		return Objects.equals(a, b);
+	}
+
+	/**
+	 * The encoded document shares its arrays of primitives with the document,
+	 * copy them so that the function cannot change them.
+	 */
+	@SuppressWarnings("unchecked")
+	static Object detach(Object o) {
+		if (o instanceof List) {
+			List<Object> list = (List<Object>) o;
+			for (int i = 0; i < list.size(); i++)
+				list.set(i, detach(list.get(i)));
+		} else if (o instanceof DBObject) {
+			DBObject dbo = (DBObject) o;
+			for (String key : dbo.keySet())
+				dbo.put(key, detach(dbo.get(key)));
+		} else if (o != null && o.getClass().isArray()) {
+			int length = Array.getLength(o);
+			Object copy = Array.newInstance(o.getClass().getComponentType(), length);
+			System.arraycopy(o, 0, copy, 0, length);
+			return copy;
+		}
+		return o;
+	}
+
+	/*
+	 * Select on the original values of the changed fields
+	 */
+	private static void guard(DBObject filter, DBObject before, DBObject update) {
+		for (String op : update.keySet()) {
+			for (String key : ((DBObject) update.get(op)).keySet()) {
+				if (before.containsField(key))
+					filter.put(key, before.get(key));
+				else
+					filter.put(key, new BasicDBObject("$exists", false));
+			}
+		}
+	}
+
+	private void indexed(DBObject update) {
+		DBObject set = (DBObject) update.get("$set");
+		if (set != null)
+			for (String key : set.keySet())
+				store.indexed(key, set.get(key));
+	}
+}
@@ -0,0 +1,222 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in memory trigram index on the keywords of a store, used for typo
+ * tolerant search. The words are padded and split into trigrams, each trigram
+ * has a posting list of the words that contain it.
+ * <p>
+ * An edit changes at most 3 trigrams of a word. So a word within k edits of
+ * the query shares at least {@code trigrams(query) - 3k} trigrams with the
+ * query. The posting lists are used to count the shared trigrams and the words
+ * that pass this filter are verified with a bounded edit distance. For short
+ * words this filter does not prune and the words of similar length are
+ * verified directly.
+ */
+class TrigramIndex {
+	final static long					REFRESH		= PrefixIndex.REFRESH;
+	final static String					KEYWORDS	= "keywords";
+
+	final MongoStoreImpl< ? >			store;
+	final String						field;
+	volatile Terms						terms	= new Terms(new TreeSet<>());
+	volatile Set<String>				previous	= ConcurrentHashMap.newKeySet();
+	volatile Set<String>				recent		= ConcurrentHashMap.newKeySet();
+
+	/*
+	 * An immutable snapshot of the words and their trigrams
+	 */
+	static class Terms {
+		final String[]			words;
+		final Map<Long, int[]>	postings	= new HashMap<>();
+		final int[][]			byLength;
+
+		Terms(Collection<String> set) {
+			words = set.toArray(new String[set.size()]);
+
+			Map<Long, int[]> lists = new HashMap<>();
+			int[] lengths = new int[1];
+			for (int id = 0; id < words.length; id++) {
+				String word = words[id];
+				if (word.length() >= lengths.length)
+					lengths = Arrays.copyOf(lengths, word.length() + 1);
+				lengths[word.length()]++;
+
+				for (long trigram : trigrams(word)) {
+					int[] list = lists.get(trigram);
+					if (list == null)
+						lists.put(trigram, list = new int[] {
+								0, 0, 0, 0, 0
+						});
+					else if (list[0] + 1 == list.length)
+						lists.put(trigram, list = Arrays.copyOf(list, list.length * 2));
+
+					// avoid duplicates when a trigram occurs more than once
+					if (list[0] == 0 || list[list[0]] != id)
+						list[++list[0]] = id;
+				}
+			}
+			for (Map.Entry<Long, int[]> e : lists.entrySet()) {
+				int[] list = e.getValue();
+				postings.put(e.getKey(), Arrays.copyOfRange(list, 1, list[0] + 1));
+			}
+
+			byLength = new int[lengths.length][];
+			for (int l = 0; l < lengths.length; l++)
+				byLength[l] = new int[lengths[l]];
+			int[] fill = new int[lengths.length];
+			for (int id = 0; id < words.length; id++) {
+				int l = words[id].length();
+				byLength[l][fill[l]++] = id;
+			}
+		}
+	}
+
+	TrigramIndex(MongoStoreImpl< ? > store, String field) {
+		this.store = store;
+		this.field = field;
+	}
+
+	/**
+	 * Scan the collection for the words
+	 */
+	void build() {
+		previous = recent;
+		recent = ConcurrentHashMap.newKeySet();
+		load(PrefixIndex.scan(store, field));
+		previous = ConcurrentHashMap.newKeySet();
+	}
+
+	void load(Collection<String> words) {
+		terms = new Terms(words);
+	}
+
+	/**
+	 * Add the values of a field that is written
+	 */
+	void add(Object value) {
+		PrefixIndex.collect(value, recent);
+	}
+
+	/**
+	 * Answer the words that are within maxEdits of the given word.
+	 */
+	Set<String> similar(String word, int maxEdits) {
+		Set<String> result = new TreeSet<>();
+		Terms terms = this.terms;
+
+		long[] trigrams = trigrams(word);
+		int threshold = trigrams.length - 3 * maxEdits;
+
+		if (threshold > 0) {
+			Map<Integer, int[]> counts = new HashMap<>();
+			for (long trigram : trigrams) {
+				int[] list = terms.postings.get(trigram);
+				if (list == null)
+					continue;
+				for (int id : list) {
+					int[] count = counts.get(id);
+					if (count == null)
+						counts.put(id, count = new int[1]);
+					count[0]++;
+				}
+			}
+			for (Map.Entry<Integer, int[]> e : counts.entrySet()) {
+				if (e.getValue()[0] >= threshold) {
+					String candidate = terms.words[e.getKey()];
+					if (distance(word, candidate, maxEdits) <= maxEdits)
+						result.add(candidate);
+				}
+			}
+		} else {
+			int from = Math.max(0, word.length() - maxEdits);
+			int to = Math.min(terms.byLength.length - 1, word.length() + maxEdits);
+			for (int l = from; l <= to; l++) {
+				for (int id : terms.byLength[l]) {
+					String candidate = terms.words[id];
+					if (distance(word, candidate, maxEdits) <= maxEdits)
+						result.add(candidate);
+				}
+			}
+		}
+
+		for (Set<String> added : Arrays.asList(previous, recent)) {
+			for (String candidate : added)
+				if (distance(word, candidate, maxEdits) <= maxEdits)
+					result.add(candidate);
+		}
+		return result;
+	}
+
+	/**
+	 * The trigrams of a word padded with 2 spaces in front and 1 at the end,
+	 * each encoded in a long.
+	 */
+	static long[] trigrams(String word) {
+		int l = word.length();
+		long[] trigrams = new long[l + 1];
+		for (int i = 0; i <= l; i++) {
+			long trigram = 0;
+			for (int j = i - 2; j <= i; j++) {
+				char c = j >= 0 && j < l ? word.charAt(j) : ' ';
+				trigram = (trigram << 16) | c;
+			}
+			trigrams[i] = trigram;
+		}
+		return trigrams;
+	}
+
+	/**
+	 * The Levenshtein distance between two words. The calculation is limited
+	 * to a band of the given width around the diagonal and stops when the
+	 * distance will exceed the limit, in that case limit + 1 is returned.
+	 */
+	static int distance(String a, String b, int limit) {
+		int la = a.length();
+		int lb = b.length();
+		if (Math.abs(la - lb) > limit)
+			return limit + 1;
+
+		int[] prev = new int[lb + 1];
+		int[] curr = new int[lb + 1];
+		int big = limit + 1;
+
+		for (int j = 0; j <= lb; j++)
+			prev[j] = j <= limit ? j : big;
+
+		for (int i = 1; i <= la; i++) {
+			int from = Math.max(1, i - limit);
+			int to = Math.min(lb, i + limit);
+
+			curr[0] = i <= limit ? i : big;
+			if (from > 1)
+				curr[from - 1] = big;
+
+			int min = curr[0];
+			char ca = a.charAt(i - 1);
+			for (int j = from; j <= to; j++) {
+				int cost = ca == b.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(Math.min(prev[j] + 1, curr[j - 1] + 1), prev[j - 1] + cost);
+				curr[j] = Math.min(d, big);
+				min = Math.min(min, curr[j]);
+			}
+			if (to < lb)
+				curr[to + 1] = big;
+
+			if (min > limit)
+				return big;
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		return prev[lb];
+	}
+}
@@ -0,0 +1,248 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.log.LogService;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+
+/**
+ * A write behind buffer for the updates of single objects. The updates are
+ * coalesced per _id: a $set replaces an earlier $set, $unset, or $inc of the
+ * same field, an $inc is added to an earlier $inc or numeric $set. The
+ * coalesced updates are written in one unordered bulk operation when the
+ * buffer holds the maximum number of objects or when the delay expires.
+ * <p>
+ * Only updates that select a single _id and only use $set, $unset, and $inc
+ * are buffered. A flush holds a lock during the bulk write, so when flush
+ * returns all updates that were buffered before it are written.
+ * <p>
+ * An update that the server rejects is dropped and logged, it would fail
+ * again. If the bulk could not be sent, the updates are merged back in front
+ * of the updates that were buffered since and written by the next flush. If
+ * it is unknown what was written, only the sets and unsets are written again
+ * and the increments are dropped and logged.
+ */
+class WriteBehind {
+	final DBCollection						collection;
+	final int								size;
+	final LogService						log;
+	final ScheduledFuture< ? >				flusher;
+	final Object							flushing	= new Object();
+	LinkedHashMap<Object, Pending>			pending		= new LinkedHashMap<>();
+
+	/*
+	 * The coalesced update of one object
+	 */
+	static class Pending {
+		final Object		id;
+		final BasicDBObject	set		= new BasicDBObject();
+		final BasicDBObject	unset	= new BasicDBObject();
+		final BasicDBObject	inc		= new BasicDBObject();
+
+		Pending(Object id) {
+			this.id = id;
+		}
+
+		void merge(DBObject update) {
+			DBObject s = (DBObject) update.get("$set");
+			if (s != null)
+				for (String key : s.keySet()) {
+					set.put(key, s.get(key));
+					unset.removeField(key);
+					inc.removeField(key);
+				}
+
+			DBObject u = (DBObject) update.get("$unset");
+			if (u != null)
+				for (String key : u.keySet()) {
+					unset.put(key, 1);
+					set.removeField(key);
+					inc.removeField(key);
+				}
+
+			DBObject i = (DBObject) update.get("$inc");
+			if (i != null)
+				for (String key : i.keySet()) {
+					Number delta = (Number) i.get(key);
+					if (set.get(key) instanceof Number)
+						set.put(key, add((Number) set.get(key), delta));
+					else if (unset.containsField(key)) {
+						unset.removeField(key);
+						set.put(key, delta);
+					} else
+						inc.put(key, inc.containsField(key) ? add((Number) inc.get(key), delta) : delta);
+				}
+		}
+
+		/*
+		 * The part of the update that can be written twice
+		 */
+		Pending idempotent() {
+			Pending p = new Pending(id);
+			p.set.putAll(set.toMap());
+			p.unset.putAll(unset.toMap());
+			return p;
+		}
+
+		DBObject update() {
+			BasicDBObject update = new BasicDBObject();
+			if (!set.isEmpty())
+				update.put("$set", set);
+			if (!unset.isEmpty())
+				update.put("$unset", unset);
+			if (!inc.isEmpty())
+				update.put("$inc", inc);
+			return update;
+		}
+	}
+
+	WriteBehind(DBCollection collection, int size, long delay, ScheduledExecutorService scheduler, LogService log) {
+		this.collection = collection;
+		this.size = size;
+		this.log = log;
+		this.flusher = scheduler == null || delay <= 0 ? null : scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (Exception e) {
+				log.log(LogService.LOG_ERROR, "Could not flush the write behind buffer of " + collection.getName()
+						+ ", will retry", e);
+			}
+		}, delay, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Buffer an update if it can be buffered. Flushes in the calling thread
+	 * when the buffer is full.
+	 * 
+	 * @return true if buffered, false if the caller must write the update
+	 */
+	boolean offer(DBObject where, DBObject update) {
+		if (!bufferable(where, update))
+			return false;
+
+		Object id = where.get("_id");
+		boolean full;
+		synchronized (this) {
+			pending.computeIfAbsent(MongoStoreImpl.key(id), k -> new Pending(id)).merge(update);
+			full = pending.size() >= size;
+		}
+		if (full)
+			flush();
+		return true;
+	}
+
+	/**
+	 * Write all buffered updates
+	 */
+	void flush() {
+		synchronized (flushing) {
+			Map<Object, Pending> batch;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				pending = new LinkedHashMap<>();
+			}
+
+			List<Object> keys = new ArrayList<>(batch.keySet());
+			BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+			for (Pending p : batch.values())
+				bulk.find(new BasicDBObject("_id", p.id)).updateOne(p.update());
+			try {
+				bulk.execute();
+			} catch (BulkWriteException e) {
+				// the updates with a write error will always fail, the others
+				// were written
+				for (BulkWriteError error : e.getWriteErrors())
+					log.log(LogService.LOG_ERROR, "Dropped the buffered update " + batch.get(keys.get(error.getIndex()))
+							.update() + " of " + keys.get(error.getIndex()) + " in " + collection.getName() + ": "
+							+ error.getMessage());
+			} catch (MongoTimeoutException | MongoWaitQueueFullException e) {
+				// nothing was sent
+				requeue(batch);
+				throw e;
+			} catch (RuntimeException e) {
+				// some updates may have been written, an increment must not be
+				// written twice
+				Map<Object, Pending> retry = new LinkedHashMap<>();
+				for (Map.Entry<Object, Pending> entry : batch.entrySet()) {
+					Pending p = entry.getValue();
+					if (!p.inc.isEmpty())
+						log.log(LogService.LOG_ERROR, "Dropped the buffered increments " + p.inc + " of " + p.id
+								+ " in " + collection.getName() + ", they may have been written", e);
+					Pending idempotent = p.idempotent();
+					if (!idempotent.update().keySet().isEmpty())
+						retry.put(entry.getKey(), idempotent);
+				}
+				requeue(retry);
+				throw e;
+			}
+		}
+	}
+
+	/*
+	 * Put updates that were not written back in front of the updates that
+	 * were buffered since, a later update of the same object is merged into
+	 * the earlier one.
+	 */
+	synchronized void requeue(Map<Object, Pending> failed) {
+		for (Map.Entry<Object, Pending> e : pending.entrySet()) {
+			Pending earlier = failed.get(e.getKey());
+			if (earlier != null)
+				earlier.merge(e.getValue().update());
+			else
+				failed.put(e.getKey(), e.getValue());
+		}
+		pending = new LinkedHashMap<>(failed);
+	}
+
+	/*
+	 * Stop flushing periodically and write the remaining updates
+	 */
+	void close() {
+		if (flusher != null)
+			flusher.cancel(false);
+		flush();
+	}
+
+	static boolean bufferable(DBObject where, DBObject update) {
+		if (where == null || update == null || where.keySet().size() != 1)
+			return false;
+
+		Object id = where.get("_id");
+		if (id == null || id instanceof DBObject)
+			return false;
+
+		for (String op : update.keySet())
+			if (!op.equals("$set") && !op.equals("$unset") && !op.equals("$inc"))
+				return false;
+		return true;
+	}
+
+	static Number add(Number a, Number b) {
+		if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+			return a.doubleValue() + b.doubleValue();
+
+		if (a instanceof Integer && b instanceof Integer) {
+			long sum = a.longValue() + b.longValue();
+			if (sum == (int) sum)
+				return (int) sum;
+			return sum;
+		}
+		return a.longValue() + b.longValue();
+	}
+}
@@ -0,0 +1,161 @@
+package aQute.impl.store.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import junit.framework.TestCase;
+
+public class BlobCacheTest extends TestCase {
+	File				dir;
+	Map<String, byte[]>	blobs	= new HashMap<>();
+	int					opened;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile("blobcache", ".test");
+		dir.delete();
+	}
+
+	public void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	public void testCache() throws Exception {
+		String a = blob("a", 100);
+		String b = blob("b", 100);
+		String c = blob("c", 100);
+
+		BlobCache cache = new BlobCache(dir, 250);
+		cache.grace = 0;
+		File fa = cache.get(a, this::open);
+		assertEquals(100, fa.length());
+		assertEquals(a, fa.getName());
+		assertEquals(1, opened);
+
+		assertEquals(fa, cache.get(a, this::open));
+		assertEquals(1, opened);
+
+		cache.get(b, this::open);
+		cache.get(a, this::open);
+		cache.get(c, this::open);
+		assertEquals(3, opened);
+
+		// b was the least recently used
+		assertTrue(fa.isFile());
+		assertFalse(new File(dir, b).isFile());
+		assertEquals(200, cache.size);
+
+		// a restart finds the cached files
+		cache = new BlobCache(dir, 250);
+		assertEquals(200, cache.size);
+		cache.get(c, this::open);
+		assertEquals(3, opened);
+
+		// a deleted file is fetched again
+		new File(dir, c).delete();
+		assertEquals(100, cache.get(c, this::open).length());
+		assertEquals(4, opened);
+	}
+
+	public void testGrace() throws Exception {
+		String a = blob("a", 100);
+		String b = blob("b", 100);
+		String c = blob("c", 100);
+
+		// a was just handed out and is kept although over budget
+		BlobCache cache = new BlobCache(dir, 150);
+		File fa = cache.get(a, this::open);
+		cache.get(b, this::open);
+		assertTrue(fa.isFile());
+		assertEquals(200, cache.size);
+
+		cache.grace = 0;
+		cache.get(c, this::open);
+		assertFalse(fa.isFile());
+		assertFalse(new File(dir, b).isFile());
+		assertEquals(100, cache.size);
+	}
+
+	public void testSingleFlight() throws Exception {
+		String a = blob("a", 100);
+		BlobCache cache = new BlobCache(dir, 1000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger downloads = new AtomicInteger();
+
+		BlobCache.Source slow = sha -> {
+			downloads.incrementAndGet();
+			started.countDown();
+			release.await();
+			return new ByteArrayInputStream(blobs.get(sha));
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<File>> files = new ArrayList<>();
+			files.add(executor.submit(() -> cache.get(a, slow)));
+			started.await();
+			for (int i = 0; i < 3; i++)
+				files.add(executor.submit(() -> cache.get(a, slow)));
+			Thread.sleep(100);
+			release.countDown();
+
+			for (Future<File> file : files)
+				assertEquals(100, file.get().length());
+			assertEquals(1, downloads.get());
+			assertEquals(100, cache.size);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testVerify() throws Exception {
+		String a = blob("a", 100);
+		blobs.put(a, new byte[100]);
+
+		BlobCache cache = new BlobCache(dir, 1000);
+		try {
+			cache.get(a, this::open);
+			fail("content does not match the sha");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, dir.list().length);
+		assertEquals(0, cache.size);
+
+		try {
+			cache.get("0000", this::open);
+			fail("no such blob");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, dir.list().length);
+	}
+
+	String blob(String content, int size) throws Exception {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte) content.charAt(i % content.length());
+		String sha = Hex.toHexString(SHA1.digest(data).toByteArray());
+		blobs.put(sha, data);
+		return sha;
+	}
+
+	ByteArrayInputStream open(String sha) {
+		opened++;
+		byte[] data = blobs.get(sha);
+		return data == null ? null : new ByteArrayInputStream(data);
+	}
+}
@@ -0,0 +1,140 @@
+package aQute.impl.store.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.osgi.dto.DTO;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import aQute.impl.store.mongo.MongoBlobsImpl.BlobFile;
+import aQute.impl.store.mongo.MongoBlobsImpl.BlobInputStream;
+import aQute.lib.io.IO;
+import junit.framework.TestCase;
+
+/**
+ * The store has no collection, any access to GridFS fails. This shows that
+ * decoding and encoding the blob fields does not fetch the content.
+ */
+public class BlobsTest extends TestCase {
+	final static String SHA = "F7FF9E8B7BB2E09B70935A5D785E0CC5D9D0ABF0"; // Hello
+
+	public static class Attachment extends DTO {
+		public byte[]		_id;
+		public File			file;
+		public InputStream	stream;
+	}
+
+	MongoStoreImpl<Attachment> store;
+
+	public void setUp() throws Exception {
+		store = new MongoStoreImpl<>(null, Attachment.class, null);
+	}
+
+	public void testLazy() throws Exception {
+		DBObject o = new BasicDBObject("file", SHA).append("stream", SHA);
+		Attachment a = (Attachment) store.mcnv.fromMongo(Attachment.class, o);
+
+		assertTrue(a.file instanceof BlobFile);
+		assertEquals(SHA, a.file.getName());
+		assertEquals("blob:" + SHA, a.file.toString());
+		assertTrue(a.stream instanceof BlobInputStream);
+
+		DBObject copy = (DBObject) store.mcnv.toMongo(a);
+		assertEquals(SHA, copy.get("file"));
+		assertEquals(SHA, copy.get("stream"));
+
+		try {
+			a.file.length();
+			fail("should have accessed GridFS");
+		} catch (RuntimeException e) {
+			// expected, there is no collection
+		}
+	}
+
+	public void testMissing() throws Exception {
+		BlobFile file = new BlobFile(new MongoBlobsImpl(store) {
+			@Override
+			File fetch(String sha) throws Exception {
+				throw new FileNotFoundException("No such blob " + sha);
+			}
+		}, SHA);
+		assertFalse(file.exists());
+		assertFalse(file.isFile());
+		assertEquals(0L, file.length());
+		assertEquals(SHA, file.getPath());
+		assertEquals(new File(SHA).getAbsolutePath(), file.getAbsolutePath());
+	}
+
+	public void testReadStream() throws Exception {
+		BlobInputStream in = new BlobInputStream(store.blobs, SHA);
+		in.in = new ByteArrayInputStream("Hello".getBytes("UTF-8"));
+		assertEquals('H', in.read());
+
+		Attachment a = new Attachment();
+		a.stream = in;
+		assertEquals(SHA, ((DBObject) store.mcnv.toMongo(a)).get("stream"));
+	}
+
+	public void testVerifier() throws Exception {
+		InputStream in = new MongoBlobsImpl.Verifier(new ByteArrayInputStream("Hello".getBytes("UTF-8")), SHA);
+		assertEquals("Hello", IO.collect(in));
+
+		in = new MongoBlobsImpl.Verifier(new ByteArrayInputStream("Hallo".getBytes("UTF-8")), SHA);
+		try {
+			IO.collect(in);
+			fail("content does not match the sha");
+		} catch (IOException e) {
+			// expected
+		}
+
+		in = new MongoBlobsImpl.Verifier(new ByteArrayInputStream("Hello".getBytes("UTF-8")), SHA);
+		assertEquals(2, in.skip(2));
+		assertEquals("llo", IO.collect(in));
+	}
+
+	public void testChunkChannel() throws Exception {
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		List<Integer> loaded = new ArrayList<>();
+		ChunkChannel channel = new ChunkChannel(n -> {
+			loaded.add(n);
+			return Arrays.copyOfRange(data, n * 256, Math.min(data.length, (n + 1) * 256));
+		}, data.length, 256);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(100, MongoBlobsImpl.transfer(channel, 500, 100, Channels.newChannel(out)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 500, 600), out.toByteArray()));
+		assertEquals(Arrays.asList(1, 2), loaded);
+
+		out.reset();
+		assertEquals(50, MongoBlobsImpl.transfer(channel, 950, 100, Channels.newChannel(out)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 950, 1000), out.toByteArray()));
+		assertEquals(-1, channel.position(1000).read(ByteBuffer.allocate(10)));
+
+		File file = File.createTempFile("blob", ".test");
+		try {
+			IO.copy(data, file);
+			try (FileChannel fc = FileChannel.open(file.toPath())) {
+				out.reset();
+				assertEquals(100, MongoBlobsImpl.transfer(fc, 500, 100, Channels.newChannel(out)));
+				assertTrue(Arrays.equals(Arrays.copyOfRange(data, 500, 600), out.toByteArray()));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
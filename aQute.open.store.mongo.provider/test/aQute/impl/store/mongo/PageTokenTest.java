@@ -0,0 +1,81 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import junit.framework.TestCase;
+
+public class PageTokenTest extends TestCase {
+
+	public void testRoundTrip() {
+		byte[] id = {
+				1, 2, 3
+		};
+		String token = PageToken.encode(Arrays.asList("abc", 42L, id));
+		assertFalse(token.contains("+") || token.contains("/") || token.contains("="));
+
+		List<Object> values = PageToken.decode(token, 3);
+		assertEquals("abc", values.get(0));
+		assertEquals(42L, values.get(1));
+		assertTrue(Arrays.equals(id, (byte[]) values.get(2)));
+	}
+
+	public void testInvalid() {
+		String token = PageToken.encode(Arrays.asList("abc", 1));
+		try {
+			PageToken.decode(token, 3);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			PageToken.decode("not a token", 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testValues() {
+		DBObject o = new BasicDBObject("name", "x").append("address", new BasicDBObject("city", "Paris"));
+		assertEquals(Arrays.asList("x", "Paris", null),
+				PageToken.values(o, Arrays.asList("name", "address.city", "missing")));
+	}
+
+	public void testAfter() {
+		DBObject sort = new BasicDBObject("priority", -1).append("_id", 1);
+		DBObject after = MongoCursorImpl.after(sort, Arrays.asList(5, "b"));
+		assertEquals(new BasicDBObject("$or", Arrays.asList(
+				new BasicDBObject("$or",
+						Arrays.asList(new BasicDBObject("priority", new BasicDBObject("$lt", 5)),
+								new BasicDBObject("priority", null))),
+				new BasicDBObject("priority", 5).append("_id", new BasicDBObject("$gt", "b")))), after);
+
+		// nothing sorts before null, after null is any value
+		assertEquals(new BasicDBObject("priority", null).append("_id", new BasicDBObject("$gt", "b")),
+				MongoCursorImpl.after(sort, Arrays.asList(null, "b")));
+		DBObject ascending = new BasicDBObject("priority", 1).append("_id", 1);
+		assertEquals(new BasicDBObject("$or", Arrays.asList(
+				new BasicDBObject("priority", new BasicDBObject("$ne", null)),
+				new BasicDBObject("priority", null).append("_id", new BasicDBObject("$gt", "b")))),
+				MongoCursorImpl.after(ascending, Arrays.asList(null, "b")));
+
+		assertEquals(new BasicDBObject("_id", new BasicDBObject("$gt", "b")),
+				MongoCursorImpl.after(new BasicDBObject("_id", 1), Arrays.asList("b")));
+	}
+
+	public void testRanked() throws Exception {
+		MongoStoreImpl<PredicateTest.Person> store = new MongoStoreImpl<>(null, PredicateTest.Person.class, null);
+		MongoCursorImpl<PredicateTest.Person> cursor = store.all();
+		cursor.sort = new BasicDBObject("_score", new BasicDBObject("$meta", "textScore"));
+		try {
+			cursor.page(10, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected, already on the first page
+		}
+	}
+}
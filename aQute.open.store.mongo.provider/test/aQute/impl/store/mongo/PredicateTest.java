@@ -0,0 +1,136 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.osgi.dto.DTO;
+
+import junit.framework.TestCase;
+
+/**
+ * The predicates are evaluated in process so they do not need a running Mongo.
+ */
+public class PredicateTest extends TestCase {
+
+	public static class Address extends DTO {
+		public String	city;
+		public int		zip;
+	}
+
+	public static class Person extends DTO {
+		public byte[]			_id;
+		public String			name;
+		public int				year;
+		public double			weight;
+		public boolean			active;
+		public int[]			points;
+		public List<String>		tags	= new ArrayList<>();
+		public Address			address;
+		public List<Address>	previous	= new ArrayList<>();
+	}
+
+	MongoStoreImpl<Person>	store;
+	Person					peter;
+	Person					mieke;
+
+	public void setUp() throws Exception {
+		store = new MongoStoreImpl<>(null, Person.class, null);
+
+		peter = new Person();
+		peter._id = new byte[] {
+				1, 2, 3
+		};
+		peter.name = "Peter";
+		peter.year = 1958;
+		peter.weight = 80.5;
+		peter.active = true;
+		peter.points = new int[] {
+				1, 2, 3
+		};
+		peter.tags.add("osgi");
+		peter.address = new Address();
+		peter.address.city = "Beaulieu";
+		peter.address.zip = 6090;
+
+		mieke = new Person();
+		mieke.name = "Mieke";
+		mieke.year = 1962;
+		mieke.points = new int[0];
+		Address old = new Address();
+		old.city = "Amsterdam";
+		old.zip = 1000;
+		mieke.previous.add(old);
+	}
+
+	public void testComparisons() throws Exception {
+		assertMatch("year=1958", peter);
+		assertMatch("year<1960", peter);
+		assertMatch("year>1960", mieke);
+		assertMatch("year>=%s", 1962, mieke);
+		assertMatch("year<=1962", peter, mieke);
+		assertMatch("weight>80", peter);
+		assertMatch("year>1958.5", mieke);
+		assertMatch("active=true", peter);
+		assertMatch("name>N", peter);
+		assertMatch("name=Mieke", mieke);
+	}
+
+	public void testWildcards() throws Exception {
+		assertMatch("name=*", peter, mieke);
+		assertMatch("name=M*", mieke);
+		assertMatch("name=*e*e*", peter, mieke);
+		assertMatch("name~=^p", peter);
+		assertMatch("address=*", peter);
+	}
+
+	public void testArrays() throws Exception {
+		assertMatch("points>2", peter);
+		assertMatch("points=2", peter);
+		assertMatch("points=[]", mieke);
+		assertMatch("tags=osgi", peter);
+		assertMatch("tags=*", peter, mieke);
+	}
+
+	public void testPaths() throws Exception {
+		assertMatch("address.city=Beaulieu", peter);
+		assertMatch("address.city>A", peter);
+
+		// like in Mongo, the value for a nested path is not converted
+		assertMatch("address.zip<7000");
+		assertMatch("previous.city=Amst*", mieke);
+		assertMatch("previous.0.city=Amsterdam", mieke);
+	}
+
+	public void testBinary() throws Exception {
+		assertMatch("_id=[h010203]", peter);
+		assertMatch("_id=[bAQID]", peter);
+		assertMatch("_id=%s", new byte[] {
+				1, 2, 3
+		}, peter);
+	}
+
+	public void testComposites() throws Exception {
+		assertMatch("(&(year>1900)(name=P*))", peter);
+		assertMatch("(|(year=1958)(year=1962))", peter, mieke);
+		assertMatch("(!(year=1958))", mieke);
+		assertMatch("(!(year=1958)(year=1962))");
+	}
+
+	void assertMatch(String filter, Object arg, Person... expected) throws Exception {
+		check(store.predicate(filter, arg), expected);
+	}
+
+	void assertMatch(String filter, Person... expected) throws Exception {
+		check(store.predicate(filter), expected);
+	}
+
+	void check(Predicate<Person> p, Person... expected) {
+		List<Person> selected = new ArrayList<>();
+		for (Person person : Arrays.asList(peter, mieke))
+			if (p.test(person))
+				selected.add(person);
+		assertEquals(Arrays.asList(expected), selected);
+	}
+}
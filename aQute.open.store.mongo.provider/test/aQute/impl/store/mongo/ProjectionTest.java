@@ -0,0 +1,96 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.osgi.dto.DTO;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import junit.framework.TestCase;
+
+public class ProjectionTest extends TestCase {
+
+	public static class Address extends DTO {
+		public String	city;
+	}
+
+	public static class Person extends DTO {
+		public byte[]		_id;
+		public String		name;
+		public long			age;
+		public int			rank;
+		public boolean		active;
+		public List<String>	tags;
+		public Address		address;
+		public String		notes;
+	}
+
+	public static class Summary {
+		public String	name;
+		public long		age;
+		public int		rank;
+		public Address	address;
+		public static int	ignored;
+	}
+
+	public void testSelect() throws Exception {
+		MongoStoreImpl<Person> store = new MongoStoreImpl<>(null, Person.class, null);
+		Projection<Summary> projection = store.mcnv.projection(Summary.class);
+		assertSame(projection, store.mcnv.projection(Summary.class));
+		assertNotSame(projection, new MongoStoreImpl<>(null, Person.class, null).mcnv.projection(Summary.class));
+
+		DBObject select = projection.select;
+		assertEquals(0, select.get("_id"));
+		assertEquals(1, select.get("name"));
+		assertEquals(1, select.get("address"));
+		assertFalse(select.containsField("ignored"));
+		assertEquals(5, select.keySet().size());
+	}
+
+	public void testDecode() throws Throwable {
+		MongoStoreImpl<Person> store = new MongoStoreImpl<>(null, Person.class, null);
+
+		DBObject o = new BasicDBObject("name", "Peter").append("age", 42L).append("rank", 3L).append("address",
+				new BasicDBObject("city", "Paris"));
+		Summary summary = Projection.of(Summary.class).decode(o, store.mcnv);
+		assertEquals("Peter", summary.name);
+		assertEquals(42L, summary.age);
+		assertEquals(3, summary.rank);
+		assertEquals("Paris", summary.address.city);
+
+		// missing fields keep their default
+		summary = Projection.of(Summary.class).decode(new BasicDBObject("age", 7), store.mcnv);
+		assertNull(summary.name);
+		assertEquals(7L, summary.age);
+		assertNull(summary.address);
+	}
+
+	public static class Tagged {
+		public byte[]		_id;
+		public List<String>	tags;
+		public boolean		active;
+	}
+
+	public void testCollections() throws Throwable {
+		MongoStoreImpl<Person> store = new MongoStoreImpl<>(null, Person.class, null);
+
+		BasicDBList tags = new BasicDBList();
+		tags.addAll(Arrays.asList("a", "b"));
+		DBObject o = new BasicDBObject("_id", new byte[] {
+				1
+		}).append("tags", tags).append("active", true);
+
+		Projection<Tagged> projection = Projection.of(Tagged.class);
+		assertFalse(projection.select.containsField("_id") && projection.select.get("_id").equals(0));
+
+		Tagged tagged = projection.decode(o, store.mcnv);
+		assertTrue(Arrays.equals(new byte[] {
+				1
+		}, tagged._id));
+		assertEquals(Arrays.asList("a", "b"), tagged.tags);
+		assertTrue(tagged.active);
+	}
+}
@@ -0,0 +1,72 @@
+package aQute.impl.store.mongo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.dto.DTO;
+
+import junit.framework.TestCase;
+
+/**
+ * The query compiler only creates Mongo queries so it does not need a running
+ * Mongo.
+ */
+public class QueryCompilerTest extends TestCase {
+
+	public static class Program extends DTO {
+		public byte[]	_id;
+		public String	name;
+		public int		year;
+		public String[]	keywords;
+	}
+
+	MongoStoreImpl<Program>	store;
+	Map<String, String>		templates	= new HashMap<>();
+
+	public void setUp() throws Exception {
+		store = new MongoStoreImpl<>(null, Program.class, null);
+		templates.put("name", "name=%s");
+		templates.put("after", "year>%s");
+		templates.put("any", "(|(name=%s)(keywords=%1$s))");
+	}
+
+	public void testKeywords() throws Exception {
+		assertQuery("{ \"keywords\" : \"osgi\"}", "OSGi");
+		assertQuery("{ \"$and\" : [ { \"keywords\" : \"osgi\"} , { \"$nor\" : [ { \"keywords\" : \"mongo\"}]}]}",
+				"osgi -mongo");
+		assertNull(store.compiler(templates).compile("  the  "));
+	}
+
+	public void testTemplates() throws Exception {
+		assertQuery("{ \"name\" : \"bnd\"}", "name:bnd");
+		assertQuery("{ \"year\" : { \"$gt\" : 2000}}", "after:2000");
+		assertQuery("{ \"$nor\" : [ { \"name\" : \"bnd\"}]}", "!name:bnd");
+		assertQuery("{ \"name\" : { \"$regex\" : \"^bn.*\"}}", "name:bn*");
+		assertQuery("{ \"$or\" : [ { \"name\" : \"bnd\"} , { \"keywords\" : \"bnd\"}]}", "any:bnd");
+		assertQuery("{ \"$and\" : [ { \"year\" : { \"$gt\" : 2000}} , { \"keywords\" : \"osgi\"}]}",
+				"after:2000 osgi");
+	}
+
+	public void testNoTemplate() throws Exception {
+		assertEquals(store.compiler(templates).compile("version:bnd"),
+				store.compiler(new HashMap<>()).compile("version bnd"));
+		assertNotNull(store.compiler(new HashMap<>()).compile("name:bnd"));
+		assertEquals(store.compiler(new HashMap<>()).compile("name bnd"),
+				store.compiler(new HashMap<>()).compile("name:bnd"));
+	}
+
+	public void testSameAsFilter() throws Exception {
+		assertEquals(store.filter("(&(name=bnd)(year>2000))"),
+				store.compiler(templates).compile("name:bnd after:2000"));
+	}
+
+	public void testCached() throws Exception {
+		QueryCompiler compiler = store.compiler(templates);
+		assertSame(compiler, store.compiler(new HashMap<>(templates)));
+		assertSame(compiler.compile("name:bnd osgi"), compiler.compile("name:bnd osgi"));
+	}
+
+	void assertQuery(String expected, String q) throws Exception {
+		assertEquals(expected, store.compiler(templates).compile(q).toString());
+	}
+}
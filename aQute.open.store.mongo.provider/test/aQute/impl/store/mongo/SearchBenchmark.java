@@ -0,0 +1,83 @@
+package aQute.impl.store.mongo;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the tokenizer of {@link Search} with the original regular
+ * expression based tokenizer in {@link LegacySearch}. Run the main method from
+ * the IDE with the test path on the class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+	static String[]	WORDS	= {
+			"OSGi", "enRoute", "the", "bundle", "is", "a", "Java", "module", "cr\u00E8me", "br\u00FBl\u00E9e", "and",
+			"service", "registry", "of", "components", "configuration", "2015", "fa\u00E7ade", "Mongo", "database",
+			"na\u00EFve"
+	};
+
+	@Param({
+			"ascii", "mixed"
+	})
+	String			kind;
+	String			description;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if (kind.equals("ascii"))
+				word = word.replace('\u00E8', 'e').replace('\u00FB', 'u').replace('\u00E9', 'e')
+						.replace('\u00E7', 'c').replace('\u00EF', 'i');
+			sb.append(word).append(i % 10 == 0 ? ", " : " ");
+		}
+		description = sb.toString();
+	}
+
+	@Benchmark
+	public Object legacy() {
+		LegacySearch search = new LegacySearch();
+		search.addAll(description);
+		return search.set();
+	}
+
+	@Benchmark
+	public Object search() {
+		Search search = new Search();
+		search.addAll(description);
+		return search.set();
+	}
+
+	@Benchmark
+	public Object reader() throws Exception {
+		Search search = new Search();
+		search.addAll(new StringReader(description));
+		return search.set();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SearchBenchmark.class.getSimpleName()).build()).run();
+	}
+}
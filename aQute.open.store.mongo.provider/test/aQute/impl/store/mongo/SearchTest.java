@@ -0,0 +1,68 @@
+package aQute.impl.store.mongo;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SearchTest extends TestCase {
+
+	static String[] TEXTS = {
+			"The quick brown fox jumps over the lazy dog",
+			"OSGi enRoute is a Java based application framework, see www.osgi.org or bnd.bndtools.org",
+			"Cr\u00E8me br\u00FBl\u00E9e, fa\u00E7ade, na\u00EFve, \u00C5ngstr\u00F6m and \u00DCbergr\u00F6\u00DFentr\u00E4ger",
+			"  ARE you   THE  one?? It's 2015-11-16 and this is v1.2.3 ",
+			"\u0395\u03BB\u03BB\u03B7\u03BD\u03B9\u03BA\u03AC \u03BA\u03B5\u03AF\u03BC\u03B5\u03BD\u03B1 \u03BA\u03B1\u03B9 \u0440\u0443\u0441\u0441\u043A\u0438\u0439 \u0442\u0435\u043A\u0441\u0442, \u65E5\u672C\u8A9E\u306E\u30C6\u30AD\u30B9\u30C8",
+			"a b c de fg, x1 y2 zz", "", "   ", "\u0130stanbul KELVIN \u212Aelvin"
+	};
+
+	public void testSameAsLegacy() throws Exception {
+		for (String text : TEXTS) {
+			assertSame(text);
+		}
+
+		Random random = new Random(1);
+		String alphabet = "abcde\u00E9\u00E8ABCDE\u00C901 \t,.-\u00F1\u00D1\u00FC\u00DF";
+		for (int n = 0; n < 1000; n++) {
+			StringBuilder sb = new StringBuilder();
+			int l = random.nextInt(100);
+			for (int i = 0; i < l; i++)
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			assertSame(sb.toString());
+		}
+	}
+
+	public void testAdd() throws Exception {
+		for (String word : new String[] {
+				"Java", " Cr\u00E8me ", "THE", "two words", "", "x", "\u03A9mega"
+		}) {
+			Search search = new Search();
+			LegacySearch legacy = new LegacySearch();
+			search.add(word);
+			legacy.add(word);
+			assertEquals(word, legacy.set(), search.set());
+		}
+	}
+
+	public void testReader() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			sb.append(TEXTS[i % TEXTS.length]).append(' ');
+		sb.append("averyveryverylongwordthatcrossesthereadbufferboundary");
+
+		Search search = new Search();
+		search.addAll(new StringReader(sb.toString()));
+
+		LegacySearch legacy = new LegacySearch();
+		legacy.addAll(sb.toString());
+		assertEquals(legacy.set(), search.set());
+	}
+
+	void assertSame(String text) {
+		Search search = new Search();
+		search.addAll(text);
+		LegacySearch legacy = new LegacySearch();
+		legacy.addAll(text);
+		assertEquals(text, legacy.set(), search.set());
+	}
+}
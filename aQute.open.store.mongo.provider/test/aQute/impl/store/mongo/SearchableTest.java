@@ -0,0 +1,123 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.osgi.dto.DTO;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import aQute.open.store.api.Searchable;
+import junit.framework.TestCase;
+
+/**
+ * The shadow fields and the query translation do not need a running Mongo.
+ */
+public class SearchableTest extends TestCase {
+
+	public static class Dish extends DTO {
+		public byte[]		_id;
+		@Searchable
+		public String		name;
+		@Searchable
+		public List<String>	tags;
+		public String		origin;
+	}
+
+	MongoStoreImpl<Dish> store;
+
+	public void setUp() throws Exception {
+		store = new MongoStoreImpl<>(null, Dish.class, null);
+	}
+
+	public static class Ranked extends DTO {
+		public byte[]	_id;
+		public String	name;
+		public double	_score;
+	}
+
+	public void testScoreNotStored() throws Exception {
+		MongoStoreImpl<Ranked> ranked = new MongoStoreImpl<>(null, Ranked.class, null);
+		Ranked r = new Ranked();
+		r.name = "x";
+		r._score = 1.5;
+		DBObject o = (DBObject) ranked.mcnv.toMongo(r);
+		assertEquals("x", o.get("name"));
+		assertFalse(o.containsField("_score"));
+	}
+
+	public void testShadow() throws Exception {
+		Dish dish = dish("Cr\u00E8me Br\u00FBl\u00E9e", "Fran\u00E7ais", "Dessert");
+		DBObject o = (DBObject) store.mcnv.toMongo(dish);
+
+		assertEquals("creme brulee", o.get("_s_name"));
+		assertEquals(Arrays.asList("francais", "dessert"), o.get("_s_tags"));
+		assertNull(o.get("_s_origin"));
+
+		Dish copy = (Dish) store.mcnv.fromMongo(Dish.class, o);
+		assertEquals(dish.name, copy.name);
+		assertEquals(dish.tags, copy.tags);
+	}
+
+	public void testQuery() throws Exception {
+		assertEquals(new BasicDBObject("_s_name", "creme"), store.filter("name~=Cr\u00E8me"));
+		assertEquals(MongoStoreImpl.range("_s_name", "creme"), store.filter("name~=CREME*"));
+		assertEquals(new BasicDBObject("_s_name", new BasicDBObject("$regex", "^(?:.*brulee)$")),
+				store.filter("name~=*Brulee"));
+		assertEquals(MongoStoreImpl.range("name", "Cr"), store.filter("name=Cr*"));
+
+		// fields that are not searchable are not rewritten
+		assertEquals(new BasicDBObject("origin", new BasicDBObject("$regex", "creme").append("$options", "i")),
+				store.filter("origin~=creme"));
+		assertEquals(new BasicDBObject("origin", new BasicDBObject("$regex", "^Cr.*")), store.filter("origin=Cr*"));
+	}
+
+	public void testDiacritics() throws Exception {
+		String regex = "^(?:" + MongoStoreImpl.diacritics(Search.fold("Cr\u00E8me.*")) + ")$";
+		Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		assertTrue(pattern.matcher("Cr\u00E8me br\u00FBl\u00E9e").matches());
+		assertTrue(pattern.matcher("CRE\u0300ME").matches());
+		assertTrue(pattern.matcher("creme").matches());
+		assertFalse(pattern.matcher("crime").matches());
+
+		// escapes keep their meaning, in a class the variants are added
+		assertEquals("\\e\\[x", MongoStoreImpl.diacritics("\\e\\[x"));
+		Pattern inClass = Pattern.compile(MongoStoreImpl.diacritics("[ae]+"));
+		assertTrue(inClass.matcher("a\u00E9e").matches());
+		assertFalse(MongoStoreImpl.diacritics("[ae]+").contains("(?:"));
+	}
+
+	public void testRange() throws Exception {
+		assertEquals(new BasicDBObject("name", new BasicDBObject("$gte", "cr").append("$lt", "cs")),
+				MongoStoreImpl.range("name", "cr"));
+		assertEquals("cs", MongoStoreImpl.after("cr"));
+		assertEquals("\uE000", MongoStoreImpl.after("\uD7FF"));
+		assertEquals("a\uD800\uDC00", MongoStoreImpl.after("a\uFFFF"));
+		assertEquals("b", MongoStoreImpl.after("a\uDBFF\uDFFF"));
+		assertNull(MongoStoreImpl.after(""));
+		assertEquals(new BasicDBObject("name", new BasicDBObject("$gte", "").append("$type", 2)),
+				MongoStoreImpl.range("name", ""));
+	}
+
+	public void testPredicate() throws Exception {
+		Dish dish = dish("Cr\u00E8me Br\u00FBl\u00E9e", "Fran\u00E7ais", "Dessert");
+
+		assertTrue(store.predicate("name~=creme*brulee").test(dish));
+		assertTrue(store.predicate("name~=CAFE").test(dish("Caf\u00E9")));
+		assertTrue(store.predicate("name~=CREME*").test(dish));
+		assertTrue(store.predicate("name~=*br\u00FBl\u00E9e").test(dish));
+		assertFalse(store.predicate("name~=creme").test(dish));
+		assertFalse(store.predicate("name~=brulee*").test(dish));
+		assertTrue(store.predicate("tags~=francais").test(dish));
+		assertTrue(store.predicate("tags~=DESS*").test(dish));
+	}
+
+	Dish dish(String name, String... tags) {
+		Dish dish = new Dish();
+		dish.name = name;
+		dish.tags = Arrays.asList(tags);
+		return dish;
+	}
+}
@@ -0,0 +1,67 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class SequenceTest extends TestCase {
+
+	public void testBlocks() throws Exception {
+		AtomicLong counter = new AtomicLong();
+		AtomicInteger reservations = new AtomicInteger();
+		Sequence sequence = new Sequence(size -> {
+			reservations.incrementAndGet();
+			return counter.addAndGet(size);
+		}, 10);
+
+		for (int i = 1; i <= 25; i++)
+			assertEquals(i, sequence.next());
+		assertEquals(3, reservations.get());
+
+		// another generator on the same counter gets another block
+		Sequence other = new Sequence(counter::addAndGet, 10);
+		assertEquals(31, other.next());
+		assertEquals(26, sequence.next());
+	}
+
+	public void testConcurrent() throws Exception {
+		AtomicLong counter = new AtomicLong();
+		Sequence a = new Sequence(counter::addAndGet, 7);
+		Sequence b = new Sequence(counter::addAndGet, 13);
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			Sequence sequence = i % 2 == 0 ? a : b;
+			Thread t = new Thread(() -> {
+				try {
+					for (int j = 0; j < 1000; j++)
+						assertTrue(ids.add(sequence.next()));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(8000, ids.size());
+		assertFalse(ids.contains(0L));
+	}
+
+	public void testInvalidBlock() {
+		try {
+			new Sequence(size -> size, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -3,6 +3,7 @@ package aQute.impl.store.mongo;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 import org.osgi.dto.DTO;
 
@@ -10,11 +11,20 @@ import junit.framework.*;
 import aQute.bnd.annotation.component.*;
 import aQute.bnd.version.*;
 import aQute.lib.io.*;
+import aQute.open.store.api.ChunkReport;
+import aQute.open.store.api.Counter;
 import aQute.open.store.api.Cursor.Visitor;
+import aQute.open.store.api.LoadOptions;
+import aQute.open.store.api.LoadReport;
+import aQute.open.store.api.Page;
+import aQute.open.store.api.RateLimit;
+import aQute.open.store.api.TransformReport;
+import aQute.open.store.api.WriteMode;
 import aQute.test.dummy.ds.*;
 import aQute.test.dummy.log.*;
 
 import com.mongodb.*;
+import com.mongodb.gridfs.GridFSInputFile;
 
 public class StoreTest extends TestCase {
 
@@ -256,6 +266,25 @@ public class StoreTest extends TestCase {
 		assertEquals(2, store.find("xs=3").count());
 	}
 
+	public void testUpsertUnique() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "upsertunique");
+		store.drop();
+		store.unique("string");
+
+		Basic b = new Basic();
+		b.string = "a";
+		store.insert(b);
+
+		// without an _id the upsert selects on the unique fields
+		Basic u = new Basic();
+		u.string = "a";
+		u.value = 5;
+		store.upsert(u);
+		assertEquals(1, store.all().count());
+		assertEquals(5, store.all().first().get().value);
+		assertEquals(b._id, store.all().first().get()._id);
+	}
+
 	public static class Basic {
 		public String	_id;
 		public int		value;
@@ -326,6 +355,52 @@ public class StoreTest extends TestCase {
 		assertNull(d.f);
 	}
 
+	public static class StreamData {
+		public byte[]		_id;
+		public InputStream	in;
+	}
+
+	public void testBlobs() throws Exception {
+		MongoStoreImpl<StreamData> store = mongo.getStore(StreamData.class, "blobs");
+		store.drop();
+
+		String sha = store.blobs().put(new ByteArrayInputStream("Hello".getBytes("UTF-8")));
+		assertEquals(sha, store.blobs().put(new ByteArrayInputStream("Hello".getBytes("UTF-8"))));
+		assertEquals(1, mongo.db.getCollection("blobs.files").count());
+		assertTrue(store.blobs().exists(sha));
+
+		// a second file with the same name cannot be renamed into place
+		GridFSInputFile twin = store.getGridFs().createFile("Hello".getBytes("UTF-8"));
+		twin.setFilename(sha);
+		try {
+			twin.save();
+			fail();
+		} catch (DuplicateKeyException e) {
+			// expected
+		}
+		assertEquals("Hello", IO.collect(store.blobs().get(sha)));
+		assertNull(store.blobs().get("0000"));
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		assertEquals(3, store.blobs().transfer(sha, 1, 3, java.nio.channels.Channels.newChannel(bout)));
+		assertEquals("ell", new String(bout.toByteArray(), "UTF-8"));
+		assertNull(store.blobs().open("0000"));
+
+		StreamData d = new StreamData();
+		d.in = new ByteArrayInputStream("World".getBytes("UTF-8"));
+		store.insert(d);
+
+		// the consumed stream is replaced, an update stores the same blob
+		assertTrue(d.in instanceof MongoBlobsImpl.BlobInputStream);
+		store.update(d);
+		assertEquals(2, mongo.db.getCollection("blobs.files").count());
+
+		d = store.all().first().get();
+		store.update(d);
+		assertEquals(2, mongo.db.getCollection("blobs.files").count());
+		assertEquals("World", IO.collect(d.in));
+	}
+
 	/**
 	 * Test the visitor
 	 */
@@ -365,4 +440,699 @@ public class StoreTest extends TestCase {
 		assertEquals(500, n.get());
 		assertEquals(900, store.count());
 	}
+
+	/**
+	 * Test the ranked text search
+	 */
+	public static class Doc {
+		public byte[]	_id;
+		public String	title;
+		public String	body;
+		public double	_score;
+	}
+
+	public void testTextSearch() throws Exception {
+		MongoStoreImpl<Doc> store = mongo.getStore(Doc.class, "text");
+		store.drop();
+
+		String[][] docs = {
+				{
+						"Mongo", "A document database"
+				}, {
+						"OSGi", "A module system for Java with a service registry"
+				}, {
+						"OSGi services", "Services are the OSGi way to decouple modules, services services"
+				}
+		};
+		for (String[] d : docs) {
+			Doc doc = new Doc();
+			doc.title = d[0];
+			doc.body = d[1];
+			store.insert(doc);
+		}
+
+		// without a text index we fall back to the keywords
+		assertEquals(0, store.all().search("services").count());
+
+		store.textIndex("title", "body");
+		List<Doc> result = store.all().search("services").collect();
+		assertEquals(2, result.size());
+		assertEquals("OSGi services", result.get(0).title);
+		assertTrue(result.get(0)._score > result.get(1)._score);
+
+		assertEquals(1, store.all().search("services -decouple").count());
+	}
+
+	/**
+	 * Test the prefix index
+	 */
+	public static class Item {
+		public byte[]		_id;
+		public String		name;
+		public List<String>	keywords;
+	}
+
+	public void testPrefix() throws Exception {
+		MongoStoreImpl<Item> store = mongo.getStore(Item.class, "prefix");
+		store.drop();
+
+		for (String name : new String[] {
+				"Mieke", "Mischa", "Thomas", "Peter"
+		}) {
+			Item item = new Item();
+			item.name = name;
+			store.insert(item);
+			store.find(item).text(name + " likes mongodb and microservices").update();
+		}
+
+		assertEquals(Arrays.asList("Mieke", "Mischa"), store.complete("name", "Mi", 10));
+		assertEquals(2, store.all().prefix("name", "Mi", 10).count());
+
+		store.prefixIndex("name", "keywords");
+		assertEquals(Arrays.asList("Mieke", "Mischa"), store.complete("name", "Mi", 10));
+		assertEquals(Arrays.asList("microservices", "mieke"), store.complete("keywords", "mi", 2));
+		assertEquals(1, store.all().prefix("name", "Mie", 10).count());
+
+		Item item = new Item();
+		item.name = "Milan";
+		store.insert(item);
+		assertEquals(Arrays.asList("Mieke", "Milan", "Mischa"), store.complete("name", "Mi", 10));
+		assertEquals(3, store.all().prefix("name", "Mi", 10).count());
+	}
+
+	public void testFuzzy() throws Exception {
+		MongoStoreImpl<Item> store = mongo.getStore(Item.class, "fuzzy");
+		store.drop();
+
+		for (String text : new String[] {
+				"OSGi bundles and components", "Mongo database", "Configuration admin"
+		}) {
+			Item item = new Item();
+			item.name = text;
+			store.insert(item);
+			store.find(item).text(text).update();
+		}
+
+		assertEquals(0, store.all().fuzzy("bundels", 2).count());
+
+		store.trigramIndex();
+		assertEquals(1, store.all().fuzzy("bundels", 2).count());
+		assertEquals(1, store.all().fuzzy("mongo databse", 1).count());
+		assertEquals(0, store.all().fuzzy("mongo configuraton", 1).count());
+	}
+
+	public void testBackfill() throws Exception {
+		mongo.db.getCollection("backfill").drop();
+		mongo.db.getCollection("backfill").insert(new BasicDBObject("_id", "old").append("name", "Cr\u00E8me"));
+
+		MongoStoreImpl<SearchableTest.Dish> store = mongo.getStore(SearchableTest.Dish.class, "backfill");
+		assertEquals(1, store.find("name~=cr*").count());
+
+		store.backfill.get();
+		assertEquals("creme", mongo.db.getCollection("backfill").findOne().get("_s_name"));
+		assertEquals(1, store.find("name~=creme").count());
+	}
+
+	public void testReindexText() throws Exception {
+		MongoStoreImpl<Item> store = mongo.getStore(Item.class, "reindex");
+		store.drop();
+
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < 2500; i++) {
+			Item item = new Item();
+			item.name = "item" + i + (i % 2 == 0 ? " even" : " odd");
+			items.add(store.insert(item));
+		}
+
+		assertEquals(2500, store.reindexText("v1", item -> item.name, 4));
+		assertEquals(1250, store.find("keywords=even").count());
+		assertEquals(1, store.find("keywords=item2499").count());
+
+		// resume after a checkpoint
+		mongo.db.getCollection("reindex.checkpoints")
+				.save(new BasicDBObject("_id", TextIndexer.CHECKPOINT).append("job", "v2").append("lastId",
+						items.get(1999)._id));
+		assertEquals(500, store.reindexText("v2", item -> item.name.toUpperCase() + " later", 2));
+		assertEquals(500, store.find("keywords=later").count());
+		assertEquals(0, mongo.db.getCollection("reindex.checkpoints").count());
+
+		// a checkpoint of another job is ignored
+		mongo.db.getCollection("reindex.checkpoints")
+				.save(new BasicDBObject("_id", TextIndexer.CHECKPOINT).append("job", "v2").append("lastId",
+						items.get(1999)._id));
+		assertEquals(2500, store.reindexText("v3", item -> item.name + " final", 2));
+		assertEquals(2500, store.find("keywords=final").count());
+		assertEquals(0, mongo.db.getCollection("reindex.checkpoints").count());
+	}
+
+	public void testTransform() throws Exception {
+		MongoStoreImpl<Item> store = mongo.getStore(Item.class, "transform");
+		store.drop();
+
+		for (int i = 0; i < 250; i++) {
+			Item item = new Item();
+			item.name = "item" + i;
+			store.insert(item);
+		}
+
+		TransformReport report = store.all().transform(item -> {
+			if (item.name.endsWith("0"))
+				item.name = item.name.toUpperCase();
+			return item;
+		}, 100);
+		assertEquals(25, report.modified);
+		assertEquals(225, report.unchanged);
+		assertEquals(0, report.conflicted);
+		assertEquals(1, store.find("name=ITEM10").count());
+
+		// a concurrent change is a conflict for a guarded transform
+		report = store.find("name=ITEM*").transform(item -> {
+			if (item.name.equals("ITEM10")) {
+				try {
+					store.find("name=ITEM10").set("name", "changed").update();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			item.name = item.name.toLowerCase();
+			return item;
+		}, 10, true);
+		assertEquals(24, report.modified);
+		assertEquals(1, report.conflicted);
+		assertEquals(1, store.find("name=changed").count());
+	}
+
+	public void testTracked() throws Exception {
+		MongoStoreImpl<Item> store = mongo.getStore(Item.class, "tracked").tracked(true);
+		store.drop();
+
+		Item item = new Item();
+		item.name = "tracked";
+		item.keywords = Arrays.asList("a", "b");
+		store.insert(item);
+
+		// a concurrent change of another field is not overwritten
+		Item read = store.all().first().get();
+		store.find(item).set("keywords", Arrays.asList("c")).update();
+
+		read.name = "changed";
+		store.update(read);
+
+		Item result = store.all().first().get();
+		assertEquals("changed", result.name);
+		assertEquals(Arrays.asList("c"), result.keywords);
+	}
+
+	public static class Account {
+		public byte[]	_id;
+		public long		_version;
+		public long		balance;
+	}
+
+	public void testOptimistic() throws Exception {
+		MongoStoreImpl<Account> store = mongo.getStore(Account.class, "optimistic");
+		store.drop();
+
+		Account account = store.insert(new Account());
+		Account a = store.all().first().get();
+		Account b = store.all().first().get();
+
+		a.balance = 10;
+		assertEquals(1, store.optimistic(a).set("balance").update());
+		assertEquals(1, a._version);
+
+		b.balance = 20;
+		assertEquals(0, store.optimistic(b).set("balance").update());
+
+		a.balance = 30;
+		assertEquals(1, store.optimistic(a).set("balance").update());
+		assertEquals(2, store.all().first().get()._version);
+
+		// concurrent increments do not get lost
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					for (int j = 0; j < 25; j++)
+						store.updateWithRetry(account._id, x -> {
+							x.balance++;
+							return x;
+						});
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		Account result = store.all().first().get();
+		assertEquals(130, result.balance);
+		assertEquals(102, result._version);
+	}
+
+	public static class Job {
+		public String	_id;
+		public long		_version;
+		public int		priority;
+		public String	state;
+		public long		count;
+	}
+
+	public void testModifyAndGet() throws Exception {
+		MongoStoreImpl<Job> store = mongo.getStore(Job.class, "modify");
+		store.drop();
+
+		for (int i = 0; i < 3; i++) {
+			Job job = new Job();
+			job._id = "job" + i;
+			job.priority = i;
+			job.state = "waiting";
+			store.insert(job);
+		}
+
+		// claim the jobs in order of priority
+		Job claimed = store.all().eq("state", "waiting").descending("priority").set("state", "running")
+				.modifyAndGet().get();
+		assertEquals("job2", claimed._id);
+		assertEquals("running", claimed.state);
+		assertEquals(1, claimed._version);
+
+		Job before = store.all().eq("state", "waiting").ascending("priority").set("state", "running")
+				.getAndModify().get();
+		assertEquals("job0", before._id);
+		assertEquals("waiting", before.state);
+
+		assertFalse(store.all().eq("state", "done").set("state", "running").modifyAndGet().isPresent());
+
+		// counters
+		assertEquals(1, store.all().eq("_id", "counter").inc("count", 1).upsert().modifyAndGet().get().count);
+		assertEquals(2, store.all().eq("_id", "counter").inc("count", 1).upsert().modifyAndGet().get().count);
+		assertEquals(2, store.all().eq("_id", "counter").inc("count", 1).getAndModify().get().count);
+
+		Job projected = store.all().eq("_id", "counter").select("count").inc("count", 1).modifyAndGet().get();
+		assertEquals(4, projected.count);
+		assertNull(projected.state);
+	}
+
+	public void testCounter() throws Exception {
+		MongoStoreImpl<Job> store = mongo.getStore(Job.class, "counter");
+		store.drop();
+
+		Counter counter = store.counter("hits", 4);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					for (int j = 0; j < 50; j++)
+						counter.increment();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(400, counter.get());
+		assertSame(counter, store.counter("hits", 4));
+		assertTrue(mongo.db.getCollection("counter.counters").count() <= 4);
+
+		Counter buffered = store.counter("buffered", 2, 10);
+		buffered.add(5);
+		buffered.add(-2);
+		assertEquals(3, buffered.get());
+		buffered.flush();
+		assertEquals(3, store.counter("buffered", 2, 10).get());
+		assertEquals(0, store.counter("other", 2).get());
+	}
+
+	public static class Event {
+		public long		_id;
+		public String	name;
+	}
+
+	public static class Boxed {
+		public Long		_id;
+		public String	name;
+	}
+
+	public void testLongId() throws Exception {
+		MongoStoreImpl<Event> store = mongo.getStore(Event.class, "events");
+		store.drop();
+
+		Set<Long> ids = new HashSet<Long>();
+		for (int i = 0; i < 1500; i++) {
+			Event event = new Event();
+			event.name = "e" + i;
+			assertNotNull(store.insert(event));
+			assertTrue(event._id > 0);
+			assertTrue(ids.add(event._id));
+		}
+
+		Event event = store.find("name=e10").first().get();
+		assertTrue(ids.contains(event._id));
+
+		Event upserted = new Event();
+		upserted.name = "upserted";
+		store.upsert(upserted);
+		assertTrue(upserted._id > 0);
+		assertEquals("upserted", store.all().eq("_id", upserted._id).first().get().name);
+
+		// a new sequence starts after the ids that are already used
+		mongo.db.getCollection("sequences").remove(new BasicDBObject("_id", "seeded"));
+		mongo.db.getCollection("seeded").drop();
+		mongo.db.getCollection("seeded").insert(new BasicDBObject("_id", 5000L).append("name", "old"));
+		MongoStoreImpl<Event> seeded = mongo.getStore(Event.class, "seeded");
+		Event next = seeded.insert(new Event());
+		assertTrue(next._id > 5000);
+
+		MongoStoreImpl<Boxed> boxed = mongo.getStore(Boxed.class, "boxed");
+		boxed.drop();
+		Boxed b = boxed.insert(new Boxed());
+		assertNotNull(b._id);
+		assertEquals(b._id, boxed.all().first().get()._id);
+
+		Boxed u = new Boxed();
+		boxed.upsert(u);
+		assertNotNull(u._id);
+	}
+
+	public void testWriteBehind() throws Exception {
+		MongoStoreImpl<Job> store = mongo.getStore(Job.class, "writebehind");
+		store.drop();
+
+		Job job = new Job();
+		job._id = "job";
+		job.state = "waiting";
+		store.insert(job);
+
+		store.writeBehind(1000, 60000);
+		for (int i = 0; i < 100; i++)
+			assertEquals(1, store.find(job).inc("count", 1).update());
+		assertEquals(1, store.find(job).set("state", "running").update());
+		assertEquals(0, store.all().first().get().count);
+
+		store.flush();
+		Job result = store.all().first().get();
+		assertEquals(100, result.count);
+		assertEquals("running", result.state);
+		assertEquals(101, result._version);
+
+		// a write that cannot be buffered flushes first
+		store.find(job).inc("count", 1).update();
+		store.all().eq("state", "running").set("state", "done").update();
+		assertEquals(101, store.all().first().get().count);
+
+		store.writeBehind(0, 0);
+		assertEquals(1, store.find(job).inc("count", 1).update());
+		assertEquals(102, store.all().first().get().count);
+	}
+
+	public void testWriteModes() throws Exception {
+		MongoStoreImpl<Job> store = mongo.getStore(Job.class, "writemodes");
+		store.drop();
+
+		Job job = new Job();
+		job._id = "job";
+		assertNotNull(store.insert(job));
+		assertNull(store.insert(job));
+		assertNull(store.insert(job, WriteMode.JOURNALED));
+		assertNotNull(store.insert(job, WriteMode.UNACKNOWLEDGED));
+
+		store.writeMode(WriteMode.UNACKNOWLEDGED);
+		assertEquals(0, store.all().set("state", "x").update());
+		assertEquals(1, store.all().writeMode(WriteMode.ACKNOWLEDGED).set("state", "y").update());
+		store.writeMode(WriteMode.ACKNOWLEDGED);
+		assertEquals("y", store.all().first().get().state);
+
+		// concurrent group commits, half of them duplicates
+		AtomicInteger inserted = new AtomicInteger();
+		AtomicInteger duplicates = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 20; i++) {
+			String id = "g" + (i / 2);
+			Thread t = new Thread(() -> {
+				try {
+					Job g = new Job();
+					g._id = id;
+					if (store.insert(g, WriteMode.GROUP_COMMIT) == null)
+						duplicates.incrementAndGet();
+					else
+						inserted.incrementAndGet();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(10, inserted.get());
+		assertEquals(10, duplicates.get());
+		assertEquals(11, store.count());
+	}
+
+	public void testLoad() throws Exception {
+		MongoStoreImpl<Event> store = mongo.getStore(Event.class, "load");
+		store.drop();
+
+		Event existing = new Event();
+		existing._id = 1000000;
+		existing.name = "existing";
+		store.insert(existing);
+
+		LoadOptions options = new LoadOptions();
+		options.writers = 3;
+		options.batchBytes = 1000;
+		options.queue = 2;
+
+		LoadReport report = store.load(LongStream.range(0, 5000).mapToObj(i -> {
+			Event event = new Event();
+			if (i == 7)
+				event._id = 1000000;
+			event.name = "e" + i;
+			return event;
+		}), options);
+
+		assertEquals(4999, report.inserted);
+		assertEquals(Arrays.asList(7L), report.duplicates);
+		assertTrue(report.errors.isEmpty());
+		assertEquals(5000, store.count());
+		assertEquals("existing", store.all().eq("_id", 1000000L).first().get().name);
+	}
+
+	public void testChunks() throws Exception {
+		MongoStoreImpl<Event> store = mongo.getStore(Event.class, "chunks");
+		store.drop();
+
+		for (int i = 0; i < 1000; i++) {
+			Event event = new Event();
+			event.name = i % 2 == 0 ? "even" : "odd";
+			store.insert(event);
+		}
+
+		List<Long> progress = new ArrayList<Long>();
+		ChunkReport report = store.find("name=odd").set("name", "done").updateInChunks(100,
+				RateLimit.pause(1).progress(r -> progress.add(r.processed)));
+		assertEquals(500, report.processed);
+		assertEquals(5, report.chunks);
+		assertEquals(Arrays.asList(100L, 200L, 300L, 400L, 500L), progress);
+		assertEquals(500, store.find("name=done").count());
+
+		// 500 objects at 1000 per second take at least 300ms after 3 chunks
+		long start = System.currentTimeMillis();
+		report = store.find("name=even").removeInChunks(150, RateLimit.perSecond(1000));
+		assertEquals(500, report.processed);
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(0, store.find("name=even").count());
+
+		// resuming after the last _id finds nothing left
+		Object lastId = report.lastId;
+		report = store.find("name=even").removeInChunks(100, RateLimit.NONE, lastId);
+		assertEquals(0, report.processed);
+		assertEquals(lastId, report.lastId);
+		assertEquals(500, store.count());
+
+		// resuming an update only touches the _ids after the given _id
+		List<Event> events = store.all().ascending("_id").collect();
+		report = store.all().set("name", "late").updateInChunks(100, RateLimit.NONE, events.get(249)._id);
+		assertEquals(250, report.processed);
+		assertEquals(events.get(499)._id, report.lastId);
+		assertEquals(250, store.find("name=late").count());
+	}
+
+	public void testPage() throws Exception {
+		MongoStoreImpl<Job> store = mongo.getStore(Job.class, "page");
+		store.drop();
+
+		for (int i = 0; i < 95; i++) {
+			Job job = new Job();
+			job._id = String.format("job%03d", i);
+			job.priority = i % 7;
+			store.insert(job);
+		}
+
+		List<String> ids = new ArrayList<String>();
+		String token = null;
+		int pages = 0;
+		do {
+			Page<Job> page = store.all().descending("priority").page(10, token);
+			assertTrue(page.items.size() <= 10);
+			for (Job job : page.items)
+				ids.add(job._id);
+			token = page.nextToken;
+			pages++;
+		} while (token != null);
+
+		assertEquals(10, pages);
+		assertEquals(95, ids.size());
+		assertEquals(95, new HashSet<String>(ids).size());
+
+		List<String> expected = new ArrayList<String>();
+		for (Job job : store.all().descending("priority").ascending("_id").limit(1000))
+			expected.add(job._id);
+		assertEquals(expected, ids);
+
+		try {
+			store.all().ascending("state").descending("priority").page(10, store.all().page(10, null).nextToken);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected, the token has another sort order
+		}
+
+		// a missing sort key sorts as null, the cursor is reused for all pages
+		for (Job job : store.all().limit(1000))
+			if (job.priority % 3 != 0)
+				store.find(job).set("state", "s" + job.priority % 2).update();
+
+		for (boolean descending : new boolean[] {
+				false, true
+		}) {
+			MongoCursorImpl<Job> cursor = descending ? store.all().descending("state") : store.all().ascending("state");
+			ids.clear();
+			token = null;
+			do {
+				Page<Job> page = cursor.page(10, token);
+				for (Job job : page.items)
+					ids.add(job._id);
+				token = page.nextToken;
+			} while (token != null);
+
+			expected.clear();
+			for (Job job : cursor.ascending("_id").limit(1000))
+				expected.add(job._id);
+			assertEquals(95, expected.size());
+			assertEquals(expected, ids);
+		}
+	}
+
+	public void testGetAll() throws Exception {
+		MongoStoreImpl<Item> store = mongo.getStore(Item.class, "getall");
+		store.drop();
+
+		List<byte[]> ids = new ArrayList<byte[]>();
+		for (int i = 0; i < 600; i++) {
+			Item item = new Item();
+			item.name = "item" + i;
+			ids.add(store.insert(item)._id);
+		}
+
+		List<Object> request = new ArrayList<Object>(ids);
+		Collections.reverse(request);
+		request.add(1, store.uniqueId());
+		request.add(ids.get(599));
+
+		List<Item> items = store.getAll(request);
+		assertEquals(request.size(), items.size());
+		assertEquals("item599", items.get(0).name);
+		assertNull(items.get(1));
+		assertEquals("item598", items.get(2).name);
+		assertEquals("item0", items.get(600).name);
+		assertEquals("item599", items.get(601).name);
+
+		assertTrue(store.getAll(Collections.emptyList()).isEmpty());
+		assertEquals(2, store.all().in("_id", ids.get(3), ids.get(5)).count());
+	}
+
+	public static class Order {
+		public byte[]		_id;
+		public byte[]		customer;
+		public List<byte[]>	items;
+		public Item			resolved;
+	}
+
+	public void testInclude() throws Exception {
+		MongoStoreImpl<Item> customers = mongo.getStore(Item.class, "customers");
+		MongoStoreImpl<Order> orders = mongo.getStore(Order.class, "orders");
+		customers.drop();
+		orders.drop();
+
+		List<byte[]> ids = new ArrayList<byte[]>();
+		for (int i = 0; i < 10; i++) {
+			Item customer = new Item();
+			customer.name = "customer" + i;
+			ids.add(customers.insert(customer)._id);
+		}
+		for (int i = 0; i < 250; i++) {
+			Order order = new Order();
+			order.customer = i == 0 ? customers.uniqueId() : ids.get(i % 10);
+			order.items = Arrays.asList(ids.get(1), ids.get(2));
+			orders.insert(order);
+		}
+
+		Map<Order, List<Item>> items = new IdentityHashMap<Order, List<Item>>();
+		List<Order> result = orders.all().limit(1000).include("customer", customers, (o, c) -> o.resolved = c)
+				.include("items", customers, (o, c) -> items.computeIfAbsent(o, k -> new ArrayList<Item>()).add(c))
+				.collect();
+
+		assertEquals(250, result.size());
+		for (Order order : result) {
+			if (order.resolved != null)
+				assertTrue(Arrays.equals(order.customer, order.resolved._id));
+			assertEquals(2, items.get(order).size());
+			assertEquals("customer1", items.get(order).get(0).name);
+		}
+		assertEquals(1, result.stream().filter(o -> o.resolved == null).count());
+	}
+
+	public static class JobView {
+		public String	_id;
+		public int		priority;
+	}
+
+	public void testProject() throws Exception {
+		MongoStoreImpl<Job> store = mongo.getStore(Job.class, "project");
+		store.drop();
+
+		for (int i = 0; i < 5; i++) {
+			Job job = new Job();
+			job._id = "job" + i;
+			job.priority = i;
+			job.state = "waiting";
+			store.insert(job);
+		}
+
+		List<JobView> views = store.all().descending("priority").project(JobView.class).collect(Collectors.toList());
+		assertEquals(5, views.size());
+		assertEquals("job4", views.get(0)._id);
+		assertEquals(4, views.get(0).priority);
+
+		try {
+			store.all().project(Summary.class);
+			fail();
+		} catch (NoSuchFieldException e) {
+			// expected, the view has fields that Job does not have
+		}
+	}
+
+	public static class Summary {
+		public String	title;
+	}
 }
@@ -0,0 +1,83 @@
+package aQute.impl.store.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import aQute.impl.store.mongo.PredicateTest.Address;
+import aQute.impl.store.mongo.PredicateTest.Person;
+import junit.framework.TestCase;
+
+public class TrackerTest extends TestCase {
+	MongoStoreImpl<Person>	store;
+	Tracker					tracker;
+
+	public void setUp() throws Exception {
+		store = new MongoStoreImpl<>(null, Person.class, null);
+		tracker = new Tracker(store.mcnv.fields(Person.class));
+	}
+
+	public void testDiff() throws Exception {
+		Person p = new Person();
+		p.name = "Peter";
+		p.points = new int[] {
+				1, 2, 3
+		};
+		p.address = new Address();
+		p.address.city = "Beaulieu";
+
+		tracker.snapshot(p, encode(p));
+		assertNull(diff(p));
+
+		p.points[2] = 4;
+		p.address.zip = 6090;
+		p.name = null;
+		DBObject update = diff(p);
+		assertEquals(new BasicDBObject("points", p.points).append("address", encode(p).get("address")).keySet(),
+				((DBObject) update.get("$set")).keySet());
+		assertTrue(((DBObject) update.get("$unset")).containsField("name"));
+
+		tracker.snapshot(p, encode(p));
+		assertNull(diff(p));
+
+		assertNull(tracker.get(new Person()));
+	}
+
+	public void testHash() throws Exception {
+		assertEquals(Tracker.hash(5), Tracker.hash(5L));
+		assertEquals(Tracker.hash(5), Tracker.hash(5.0d));
+		assertFalse(Tracker.hash(5) == Tracker.hash("5"));
+		assertFalse(Tracker.hash(new byte[] {
+				1, 2
+		}) == Tracker.hash(new byte[] {
+				2, 1
+		}));
+		assertFalse(Tracker.hash(new BasicDBObject("a", "bc")) == Tracker.hash(new BasicDBObject("ab", "c")));
+		assertFalse(Tracker.hash(null) == Tracker.ABSENT);
+	}
+
+	public void testPartial() throws Exception {
+		store.tracked(true);
+		DBObject o = new BasicDBObject("name", "Peter");
+
+		Person full = new MongoCursorImpl<>(store).decode(o);
+		assertNotNull(store.tracker.get(full));
+
+		// a selection leaves defaults in the other fields, it is not tracked
+		Person partial = new MongoCursorImpl<>(store).select("name").decode(o);
+		assertNull(store.tracker.get(partial));
+
+		// the text score does not restrict the fields
+		MongoCursorImpl<Person> scored = new MongoCursorImpl<>(store);
+		scored.select = new BasicDBObject(MongoCursorImpl.SCORE, new BasicDBObject("$meta", "textScore"));
+		assertFalse(scored.partial());
+	}
+
+	DBObject diff(Person p) throws Exception {
+		DBObject o = encode(p);
+		return tracker.diff(tracker.get(p), tracker.hashes(o), o);
+	}
+
+	DBObject encode(Person p) throws Exception {
+		return (DBObject) store.mcnv.toMongo(p);
+	}
+}
@@ -0,0 +1,78 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import aQute.impl.store.mongo.PredicateTest.Address;
+import aQute.impl.store.mongo.PredicateTest.Person;
+import junit.framework.TestCase;
+
+/**
+ * The diff between the encoded documents does not need a running Mongo.
+ */
+public class TransformerTest extends TestCase {
+	MongoStoreImpl<Person> store;
+
+	public void setUp() throws Exception {
+		store = new MongoStoreImpl<>(null, Person.class, null);
+	}
+
+	public void testUnchanged() throws Exception {
+		Person p = person();
+		assertNull(Transformer.diff(encode(p), encode(person())));
+	}
+
+	public void testDiff() throws Exception {
+		Person p = person();
+		DBObject before = (DBObject) Transformer.detach(encode(p));
+
+		p.name = "Pieter";
+		p.address = null;
+		p.points[1] = 42;
+		p.previous.add(new Address());
+
+		DBObject update = Transformer.diff(before, encode(p));
+		DBObject set = (DBObject) update.get("$set");
+		assertEquals(new HashSet<>(Arrays.asList("name", "points", "previous")), set.keySet());
+		assertEquals("Pieter", set.get("name"));
+		assertEquals(new BasicDBObject("address", 1), update.get("$unset"));
+	}
+
+	public void testSame() throws Exception {
+		assertTrue(Transformer.same(new byte[] {
+				1, 2
+		}, new byte[] {
+				1, 2
+		}));
+		assertFalse(Transformer.same(new int[] {
+				1, 2
+		}, new int[] {
+				1, 3
+		}));
+		assertTrue(Transformer.same(new BasicDBObject("a", Arrays.asList(1, 2)),
+				new BasicDBObject("a", Arrays.asList(1, 2))));
+		assertFalse(Transformer.same(new BasicDBObject("a", 1), new BasicDBObject("a", 1).append("b", 2)));
+	}
+
+	DBObject encode(Person p) throws Exception {
+		return (DBObject) store.mcnv.toMongo(p);
+	}
+
+	Person person() {
+		Person p = new Person();
+		p._id = new byte[] {
+				1
+		};
+		p.name = "Peter";
+		p.points = new int[] {
+				1, 2, 3
+		};
+		p.tags.add("osgi");
+		p.address = new Address();
+		p.address.city = "Beaulieu";
+		return p;
+	}
+}
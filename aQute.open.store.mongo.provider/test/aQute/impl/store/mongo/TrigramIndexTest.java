@@ -0,0 +1,94 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/**
+ * The trigram index is loaded directly, so no Mongo is needed.
+ */
+public class TrigramIndexTest extends TestCase {
+
+	public void testDistance() {
+		assertEquals(0, TrigramIndex.distance("mongo", "mongo", 2));
+		assertEquals(1, TrigramIndex.distance("mongo", "mango", 2));
+		assertEquals(1, TrigramIndex.distance("mongo", "mongoo", 2));
+		assertEquals(2, TrigramIndex.distance("mongo", "mnogo", 2));
+		assertEquals(3, TrigramIndex.distance("mongo", "java", 2));
+		assertEquals(3, TrigramIndex.distance("a", "abcdef", 2));
+
+		Random random = new Random(1);
+		for (int n = 0; n < 10000; n++) {
+			String a = word(random);
+			String b = word(random);
+			int d = levenshtein(a, b);
+			for (int limit = 0; limit < 4; limit++)
+				assertEquals(a + " " + b, Math.min(d, limit + 1), TrigramIndex.distance(a, b, limit));
+		}
+	}
+
+	public void testSimilar() {
+		TrigramIndex index = new TrigramIndex(null, "keywords");
+		index.load(Arrays.asList("mongodb", "mongo", "osgi", "enroute", "bundle", "bundles", "component", "java",
+				"configuration", "configure"));
+
+		assertEquals(set("mongodb"), index.similar("mongdb", 1));
+		assertEquals(set("mongo", "mongodb"), index.similar("mongod", 1));
+		assertEquals(set("configuration"), index.similar("configuraton", 1));
+		assertEquals(set("bundle", "bundles"), index.similar("bundel", 2));
+		assertEquals(set("osgi"), index.similar("osig", 2));
+		assertEquals(set(), index.similar("python", 1));
+
+		index.add(Arrays.asList("python"));
+		assertEquals(set("python"), index.similar("pyhton", 2));
+	}
+
+	public void testSameAsScan() {
+		Random random = new Random(2);
+		Set<String> words = new TreeSet<>();
+		for (int i = 0; i < 2000; i++)
+			words.add(word(random));
+
+		TrigramIndex index = new TrigramIndex(null, "keywords");
+		index.load(words);
+
+		for (int n = 0; n < 200; n++) {
+			String q = word(random);
+			for (int k = 0; k < 3; k++) {
+				Set<String> expected = new TreeSet<>();
+				for (String w : words)
+					if (levenshtein(q, w) <= k)
+						expected.add(w);
+				assertEquals(q + " " + k, expected, index.similar(q, k));
+			}
+		}
+	}
+
+	static Set<String> set(String... words) {
+		return new TreeSet<>(Arrays.asList(words));
+	}
+
+	static String word(Random random) {
+		int l = 2 + random.nextInt(8);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < l; i++)
+			sb.append((char) ('a' + random.nextInt(5)));
+		return sb.toString();
+	}
+
+	static int levenshtein(String a, String b) {
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+		for (int i = 0; i <= a.length(); i++)
+			d[i][0] = i;
+		for (int j = 0; j <= b.length(); j++)
+			d[0][j] = j;
+		for (int i = 1; i <= a.length(); i++)
+			for (int j = 1; j <= b.length(); j++)
+				d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+						d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+		return d[a.length()][b.length()];
+	}
+}
@@ -0,0 +1,78 @@
+package aQute.impl.store.mongo;
+
+import java.util.Arrays;
+
+import org.osgi.dto.DTO;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import junit.framework.TestCase;
+
+public class VersionTest extends TestCase {
+
+	public static class Account extends DTO {
+		public byte[]	_id;
+		public int		_version;
+		public long		balance;
+	}
+
+	public void testVersioned() throws Exception {
+		MongoStoreImpl<Account> store = new MongoStoreImpl<>(null, Account.class, null);
+
+		DBObject update = store.versioned(
+				new BasicDBObject("$set", new BasicDBObject("balance", 10).append("_version", 4)));
+		assertEquals(new BasicDBObject("balance", 10), update.get("$set"));
+		assertEquals(new BasicDBObject("_version", 1), update.get("$inc"));
+
+		update = store.versioned(new BasicDBObject("$set", new BasicDBObject("_version", 4)));
+		assertEquals(new BasicDBObject("$inc", new BasicDBObject("_version", 1)), update);
+
+		Account account = new Account();
+		store.increment(account);
+		store.increment(account);
+		assertEquals(2, account._version);
+
+		assertEquals(2, MongoStoreImpl.expected(2));
+		assertEquals(new BasicDBObject("$in", Arrays.asList(0, null)), MongoStoreImpl.expected(0));
+	}
+
+	public void testReplacement() throws Exception {
+		MongoStoreImpl<Account> store = new MongoStoreImpl<>(null, Account.class, null);
+		Account account = new Account();
+		account._id = new byte[] {
+				1
+		};
+		account._version = 4;
+		account.balance = 10;
+
+		DBObject o = (DBObject) store.mcnv.toMongo(account);
+		DBObject update = store.replacement(o);
+		assertEquals(new BasicDBObject("balance", 10L), update.get("$set"));
+		assertEquals(new BasicDBObject("_version", 1), update.get("$inc"));
+		assertEquals(4, account._version);
+
+		store.incremented(account, o);
+		assertEquals(5, account._version);
+		assertEquals(5, o.get("_version"));
+
+		// null fields are unset
+		account.balance = 0;
+		o = (DBObject) store.mcnv.toMongo(account);
+		o.removeField("balance");
+		assertEquals(new BasicDBObject("balance", 1), store.replacement(o).get("$unset"));
+
+		// an unversioned document is replaced
+		MongoStoreImpl<SearchableTest.Dish> dishes = new MongoStoreImpl<>(null, SearchableTest.Dish.class, null);
+		SearchableTest.Dish dish = new SearchableTest.Dish();
+		dish.origin = "France";
+		o = (DBObject) dishes.mcnv.toMongo(dish);
+		assertSame(o, dishes.replacement(o));
+	}
+
+	public void testUnversioned() throws Exception {
+		MongoStoreImpl<PredicateTest.Person> store = new MongoStoreImpl<>(null, PredicateTest.Person.class, null);
+		DBObject update = new BasicDBObject("$set", new BasicDBObject("name", "x"));
+		assertEquals(new BasicDBObject("$set", new BasicDBObject("name", "x")), store.versioned(update));
+	}
+}
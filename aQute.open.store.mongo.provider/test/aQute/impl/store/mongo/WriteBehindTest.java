@@ -0,0 +1,106 @@
+package aQute.impl.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import junit.framework.TestCase;
+
+public class WriteBehindTest extends TestCase {
+
+	public void testCoalesce() {
+		WriteBehind.Pending p = new WriteBehind.Pending("a");
+		p.merge(set("name", "x"));
+		p.merge(set("name", "y"));
+		p.merge(inc("count", 1));
+		p.merge(inc("count", 2));
+		assertEquals(new BasicDBObject("$set", new BasicDBObject("name", "y")).append("$inc",
+				new BasicDBObject("count", 3)), p.update());
+
+		// an increment of a set field changes the set value
+		p.merge(set("count", 10));
+		p.merge(inc("count", 5));
+		assertEquals(15, ((DBObject) p.update().get("$set")).get("count"));
+		assertNull(p.update().get("$inc"));
+
+		// unset wins from earlier writes, an increment after unset sets
+		p.merge(new BasicDBObject("$unset", new BasicDBObject("name", 1)));
+		assertEquals(new BasicDBObject("name", 1), p.update().get("$unset"));
+		assertFalse(((DBObject) p.update().get("$set")).containsField("name"));
+
+		p.merge(new BasicDBObject("$unset", new BasicDBObject("count", 1)));
+		p.merge(inc("count", 2));
+		assertEquals(2, ((DBObject) p.update().get("$set")).get("count"));
+	}
+
+	public void testRequeue() {
+		WriteBehind buffer = new WriteBehind(null, 100, 0, null, null);
+		assertTrue(buffer.offer(new BasicDBObject("_id", "b"), inc("count", 1)));
+		assertTrue(buffer.offer(new BasicDBObject("_id", "c"), set("name", "z")));
+
+		// a failed batch goes in front and later updates are merged into it
+		Map<Object, WriteBehind.Pending> failed = new LinkedHashMap<>();
+		WriteBehind.Pending a = new WriteBehind.Pending("a");
+		a.merge(set("name", "x"));
+		WriteBehind.Pending b = new WriteBehind.Pending("b");
+		b.merge(inc("count", 2));
+		failed.put("a", a);
+		failed.put("b", b);
+		buffer.requeue(failed);
+
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(buffer.pending.keySet()));
+		assertEquals(new BasicDBObject("$inc", new BasicDBObject("count", 3)), buffer.pending.get("b").update());
+		assertEquals(new BasicDBObject("$set", new BasicDBObject("name", "z")), buffer.pending.get("c").update());
+	}
+
+	public void testIdempotent() {
+		WriteBehind.Pending p = new WriteBehind.Pending("a");
+		p.merge(set("name", "x"));
+		p.merge(inc("count", 1));
+		p.merge(new BasicDBObject("$unset", new BasicDBObject("old", 1)));
+		assertEquals(new BasicDBObject("$set", new BasicDBObject("name", "x")).append("$unset",
+				new BasicDBObject("old", 1)), p.idempotent().update());
+	}
+
+	public void testAdd() {
+		assertEquals(3, WriteBehind.add(1, 2));
+		assertEquals(3L, WriteBehind.add(1, 2L));
+		assertEquals(2.5, WriteBehind.add(1, 1.5));
+		assertEquals((long) Integer.MAX_VALUE + 1, WriteBehind.add(Integer.MAX_VALUE, 1));
+	}
+
+	public void testBufferable() {
+		assertTrue(WriteBehind.bufferable(new BasicDBObject("_id", "a"), set("name", "x")));
+		assertTrue(WriteBehind.bufferable(new BasicDBObject("_id", new byte[] {
+				1, 2
+		}), inc("count", 1)));
+		assertFalse(WriteBehind.bufferable(null, set("name", "x")));
+		assertFalse(WriteBehind.bufferable(new BasicDBObject("name", "a"), set("name", "x")));
+		assertFalse(WriteBehind.bufferable(new BasicDBObject("_id", "a").append("name", "b"), set("name", "x")));
+		assertFalse(WriteBehind.bufferable(new BasicDBObject("_id", new BasicDBObject("$gt", "a")),
+				set("name", "x")));
+		assertFalse(WriteBehind.bufferable(new BasicDBObject("_id", "a"),
+				new BasicDBObject("$pushAll", new BasicDBObject("list", new Object[0]))));
+	}
+
+	public void testKey() {
+		assertEquals(MongoStoreImpl.key(new byte[] {
+				1, 2
+		}), MongoStoreImpl.key(new byte[] {
+				1, 2
+		}));
+		assertEquals("a", MongoStoreImpl.key("a"));
+	}
+
+	private DBObject set(String field, Object value) {
+		return new BasicDBObject("$set", new BasicDBObject(field, value));
+	}
+
+	private DBObject inc(String field, Object value) {
+		return new BasicDBObject("$inc", new BasicDBObject(field, value));
+	}
+}
@@ -0,0 +1,38 @@
+package aQute.impl.store.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.WriteConcern;
+
+import aQute.open.store.api.WriteMode;
+import junit.framework.TestCase;
+
+public class WriteModeTest extends TestCase {
+
+	public void testConcern() {
+		assertEquals(WriteConcern.UNACKNOWLEDGED, MongoStoreImpl.concern(WriteMode.UNACKNOWLEDGED));
+		assertEquals(WriteConcern.ACKNOWLEDGED, MongoStoreImpl.concern(WriteMode.ACKNOWLEDGED));
+		assertEquals(WriteConcern.JOURNALED, MongoStoreImpl.concern(WriteMode.JOURNALED));
+		assertEquals(WriteConcern.MAJORITY, MongoStoreImpl.concern(WriteMode.MAJORITY));
+		assertEquals(WriteConcern.JOURNALED, MongoStoreImpl.concern(WriteMode.GROUP_COMMIT));
+	}
+
+	public void testAcknowledged() {
+		assertEquals(WriteConcern.ACKNOWLEDGED, MongoStoreImpl.acknowledged(WriteMode.UNACKNOWLEDGED));
+		assertEquals(WriteConcern.MAJORITY, MongoStoreImpl.acknowledged(WriteMode.MAJORITY));
+	}
+
+	public void testGroupCommitInterrupted() throws Exception {
+		// there is no collection so the commit fails, the group still ends
+		GroupCommit group = new GroupCommit(null, 1000);
+		Thread.currentThread().interrupt();
+		try {
+			group.insert(new BasicDBObject("_id", 1));
+			fail();
+		} catch (NullPointerException e) {
+			// expected
+		} finally {
+			Thread.interrupted();
+		}
+		assertTrue(group.group.isEmpty());
+	}
+}